@@ -0,0 +1,313 @@
+/*
+ * CacheSim.java
+ * This is an offline simulator of the proxy cache over a trace recorded with --trace
+ * It prints the miss ratio and byte miss ratio of LRU at many cache sizes from a single pass,
+ * using byte-weighted stack distances: an open hits an LRU cache of C bytes iff the files
+ * opened since its last open, itself included, take at most C bytes
+ * The eviction policies of the proxy are then replayed at the same sizes for comparison;
+ * near the sizes of single files the one-pass curve is pessimistic, since a file too large
+ * for the cache still counts in the distances while the proxy reads it through
+ *
+ * Opens of a new version miss and replace the cached one, a close updates the master copy
+ * to the version written back, and an unlink drops it, as the proxy does
+ *
+ * With --sample=rate, only files whose path hashes below the rate are kept (SHARDS):
+ * distances are scaled up by 1/rate and policies run at rate times the size, so very
+ * large traces are simulated in a fraction of the time and memory
+ *
+ * Usage: java CacheSim trace [--points=16] [--min=bytes] [--max=bytes] [--sizes=a,b,...]
+ *                            [--sample=rate] [--policies=lru,lfu,arc,gdsf|none]
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CacheSim {
+
+    private static final int createNew = FileHandling.OpenOption.CREATE_NEW.ordinal();
+
+    // events kept from the trace
+    private static int count = 0;
+    private static byte[] kinds = new byte[1024];
+    private static int[] ids = new int[1024];
+    private static int[] sizes = new int[1024];
+    private static long[] versions = new long[1024];
+    private static byte[] modes = new byte[1024];
+    private static int paths = 0;
+
+    private static void add(TraceReader reader) {
+        if (count == kinds.length) {
+            int n = count * 2;
+            kinds = Arrays.copyOf(kinds, n);
+            ids = Arrays.copyOf(ids, n);
+            sizes = Arrays.copyOf(sizes, n);
+            versions = Arrays.copyOf(versions, n);
+            modes = Arrays.copyOf(modes, n);
+        }
+        kinds[count] = reader.kind;
+        ids[count] = reader.pathId;
+        sizes[count] = (int)Math.min(reader.size, Integer.MAX_VALUE);
+        versions[count] = reader.version;
+        modes[count] = (byte)reader.mode;
+        count++;
+        paths = Math.max(paths, reader.pathId + 1);
+    }
+
+    // SHARDS: keep a path if its hash falls below the rate, the same paths for the whole trace
+    private static boolean sampled(String path, double rate) {
+        if (rate >= 1) {
+            return true;
+        }
+        long h = path.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 32;
+        return (h & 0xFFFFFF) < rate * (1 << 24);
+    }
+
+    // Fenwick tree of the sizes of cached files by the position of their last open
+    private static class Fenwick {
+        long[] tree;
+
+        Fenwick(int n) {
+            tree = new long[n + 1];
+        }
+
+        void add(int pos, long delta) {
+            for (int i = pos + 1; i < tree.length; i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+
+        // sum of [0, pos)
+        long prefix(int pos) {
+            long sum = 0;
+            for (int i = pos; i > 0; i -= i & -i) {
+                sum += tree[i];
+            }
+            return sum;
+        }
+    }
+
+    private static class Curve {
+        long requests = 0;
+        long bytes = 0;
+        long[] hits; // hits at each size, cumulative once finished
+        long[] hitBytes;
+
+        Curve(int points) {
+            hits = new long[points];
+            hitBytes = new long[points];
+        }
+    }
+
+    // LRU miss ratio curve in one pass over the events
+    private static Curve stackDistances(long[] caps, double rate) {
+        Curve curve = new Curve(caps.length);
+        Fenwick fenwick = new Fenwick(count);
+        int[] last = new int[paths]; // position of the last open of a cached file, -1 if not cached
+        long[] ver = new long[paths];
+        int[] size = new int[paths];
+        Arrays.fill(last, -1);
+        for (int i = 0; i < count; i++) {
+            int id = ids[i];
+            if (kinds[i] == TraceWriter.UNLINK) {
+                if (last[id] >= 0) {
+                    fenwick.add(last[id], -size[id]);
+                    last[id] = -1;
+                }
+            } else if (kinds[i] == TraceWriter.CLOSE) {
+                if (last[id] >= 0 && sizes[i] >= 0) {
+                    fenwick.add(last[id], sizes[i] - size[id]);
+                    size[id] = sizes[i];
+                    ver[id] = versions[i];
+                }
+            } else if (kinds[i] == TraceWriter.OPEN) {
+                if (modes[i] != createNew) {
+                    curve.requests++;
+                    curve.bytes += sizes[i];
+                    if (last[id] >= 0 && ver[id] == versions[i]) {
+                        long distance = fenwick.prefix(i) - fenwick.prefix(last[id] + 1) + sizes[i];
+                        int j = Arrays.binarySearch(caps, (long)(distance / rate));
+                        j = j < 0 ? -j - 1 : j; // the smallest size that holds it
+                        if (j < caps.length) {
+                            curve.hits[j]++;
+                            curve.hitBytes[j] += sizes[i];
+                        }
+                    }
+                }
+                if (last[id] >= 0) {
+                    fenwick.add(last[id], -size[id]);
+                }
+                fenwick.add(i, sizes[i]);
+                last[id] = i;
+                ver[id] = versions[i];
+                size[id] = sizes[i];
+            }
+        }
+        for (int j = 1; j < caps.length; j++) {
+            curve.hits[j] += curve.hits[j - 1];
+            curve.hitBytes[j] += curve.hitBytes[j - 1];
+        }
+        return curve;
+    }
+
+    // Replay the events through a policy, making room as evictForFile does
+    private static CacheStats replay(EvictionPolicy policy, long capacity) {
+        CacheStats stats = new CacheStats();
+        FileInstance[] nodes = new FileInstance[paths];
+        long[] ver = new long[paths];
+        for (int i = 0; i < count; i++) {
+            int id = ids[i];
+            if (nodes[id] == null) {
+                nodes[id] = new FileInstance(-1, "f" + id, "f" + id, null, null, null, 0);
+            }
+            FileInstance fi = nodes[id];
+            boolean cached = policy.contains(fi);
+            if (kinds[i] == TraceWriter.UNLINK) {
+                policy.remove(fi);
+            } else if (kinds[i] == TraceWriter.CLOSE) {
+                if (cached && sizes[i] >= 0) {
+                    policy.resize(fi, sizes[i]);
+                    ver[id] = versions[i];
+                }
+            } else if (kinds[i] == TraceWriter.OPEN) {
+                boolean hit = cached && ver[id] == versions[i];
+                if (modes[i] != createNew) {
+                    stats.record(hit, sizes[i]);
+                }
+                if (hit) {
+                    policy.access(fi);
+                    continue;
+                }
+                if (cached) {
+                    policy.remove(fi); // stale version
+                }
+                fi.fileSize = Math.max(sizes[i], 0);
+                ver[id] = versions[i];
+                if (fi.fileSize > capacity) {
+                    continue; // never fits, read through
+                }
+                while (policy.getBytes() + fi.fileSize > capacity && policy.evict() != null) {
+                }
+                policy.insert(fi);
+            }
+        }
+        return stats;
+    }
+
+    private static EvictionPolicy newPolicy(String name, long capacity) {
+        if (name.equals("lfu")) {
+            return new LfuPolicy();
+        } else if (name.equals("arc")) {
+            return new ArcPolicy(capacity);
+        } else if (name.equals("gdsf")) {
+            return new GdsfPolicy();
+        }
+        return new LruPolicy();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java CacheSim trace [--points=n] [--min=bytes] [--max=bytes] "
+                               + "[--sizes=a,b,...] [--sample=rate] [--policies=lru,lfu,arc,gdsf|none]");
+            System.exit(1);
+        }
+        int points = 16;
+        long min = 0, max = 0;
+        long[] caps = null;
+        double rate = 1;
+        String[] policies = {"lru", "lfu", "arc", "gdsf"};
+        for (int i = 1; i < args.length; i++) {
+            String value = args[i].substring(args[i].indexOf('=') + 1);
+            if (args[i].startsWith("--points=")) {
+                points = Math.max(Integer.parseInt(value), 2);
+            } else if (args[i].startsWith("--min=")) {
+                min = Long.parseLong(value);
+            } else if (args[i].startsWith("--max=")) {
+                max = Long.parseLong(value);
+            } else if (args[i].startsWith("--sizes=")) {
+                String[] parts = value.split(",");
+                caps = new long[parts.length];
+                for (int j = 0; j < parts.length; j++) {
+                    caps[j] = Long.parseLong(parts[j]);
+                }
+                Arrays.sort(caps);
+            } else if (args[i].startsWith("--sample=")) {
+                rate = Math.min(Double.parseDouble(value), 1);
+            } else if (args[i].startsWith("--policies=")) {
+                policies = value.equals("none") ? new String[0] : value.split(",");
+            } else {
+                System.err.println("Unknown option " + args[i]);
+            }
+        }
+
+        // load the sampled events, and the footprint of the trace as the default largest size
+        TraceReader reader = new TraceReader(args[0]);
+        long events = 0;
+        List<Boolean> keep = new ArrayList<Boolean>(); // sampling decision by path id
+        long[] largest = new long[16];
+        long footprint = 0;
+        while (reader.next()) {
+            events++;
+            while (keep.size() <= reader.pathId) {
+                keep.add(null);
+            }
+            if (keep.get(reader.pathId) == null) {
+                keep.set(reader.pathId, sampled(reader.getPath(reader.pathId), rate));
+            }
+            if (!keep.get(reader.pathId)) {
+                continue;
+            }
+            if (reader.pathId >= largest.length) {
+                largest = Arrays.copyOf(largest, Math.max(largest.length * 2, reader.pathId + 1));
+            }
+            if (reader.kind != TraceWriter.UNLINK && reader.size > largest[reader.pathId]) {
+                footprint += reader.size - largest[reader.pathId];
+                largest[reader.pathId] = reader.size;
+            }
+            add(reader);
+        }
+        reader.close();
+        footprint = (long)(footprint / rate);
+
+        if (caps == null) {
+            max = max > 0 ? max : Math.max(footprint, 1);
+            min = min > 0 ? min : Math.max(max / 1024, 1);
+            caps = new long[points];
+            for (int j = 0; j < points; j++) {
+                caps[j] = (long)(min * Math.pow((double)max / min, (double)j / (points - 1)));
+            }
+        }
+        System.out.println(String.format("%d events, %d kept, %d files, footprint %d bytes, sample rate %.4f",
+                                         events, count, reader.getPathCount(), footprint, rate));
+
+        Curve lru = stackDistances(caps, rate);
+        double[][] policyMiss = new double[policies.length][caps.length];
+        for (int p = 0; p < policies.length; p++) {
+            for (int j = 0; j < caps.length; j++) {
+                long capacity = (long)(caps[j] * rate);
+                policyMiss[p][j] = 1 - replay(newPolicy(policies[p], capacity), capacity).getHitRatio();
+            }
+        }
+
+        StringBuilder header = new StringBuilder(String.format("%14s %10s %10s", "cache bytes", "miss", "byte miss"));
+        for (String policy : policies) {
+            header.append(String.format(" %10s", policy + " miss"));
+        }
+        System.out.println(header);
+        for (int j = 0; j < caps.length; j++) {
+            double miss = lru.requests == 0 ? 0 : 1 - (double)lru.hits[j] / lru.requests;
+            double byteMiss = lru.bytes == 0 ? 0 : 1 - (double)lru.hitBytes[j] / lru.bytes;
+            StringBuilder line = new StringBuilder(String.format("%14d %10.4f %10.4f", caps[j], miss, byteMiss));
+            for (int p = 0; p < policies.length; p++) {
+                line.append(String.format(" %10.4f", policyMiss[p][j]));
+            }
+            System.out.println(line);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * FetchBench.java
+ * This is a benchmark of pipelined chunk fetching against simulated round trip time
+ * Server is an in-memory file behind SystemCallIf, every call sleeps for one RTT
+ * It prints fetch throughput for each window depth, window 1 is the old one-at-a-time loop
+ *
+ * With --adaptive, chunk size grows from throughput instead of staying at Server.chunkSize
+ *
+ * Usage: java FetchBench [file size in MB] [--adaptive]
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+public class FetchBench {
+
+    private static final double[] rtts = {0.1, 1, 5}; // simulated RTT in ms
+    private static final int[] windows = {1, 4, 16, 64};
+
+    // In-memory server, each call costs one RTT
+    private static class SlowServer implements SystemCallIf {
+        byte[] content;
+        long rttNanos;
+
+        SlowServer(byte[] content, double rttMs) {
+            this.content = content;
+            this.rttNanos = (long)(rttMs * 1000000);
+        }
+
+        private void roundTrip() {
+            LockSupport.parkNanos(rttNanos);
+        }
+
+        public Chunk readFile(FilePacket fp) {
+            roundTrip();
+            int size = fp.chunkSize > 0 ? fp.chunkSize : Server.chunkSize;
+            int len = Math.max(Math.min(content.length - fp.offset, size), 0);
+            Chunk chunk = new Chunk(len);
+            System.arraycopy(content, fp.offset, chunk.content, 0, len);
+            return chunk;
+        }
+
+        public int writeFile(String path, FilePacket fp) {
+            roundTrip();
+            return fp.content.length;
+        }
+
+        public int negotiateChunkSize(int proxyMax) {
+            return proxyMax;
+        }
+
+        public boolean negotiateCompression(boolean wanted) {
+            return false;
+        }
+
+        public String[] listFiles(String glob) {
+            return new String[0];
+        }
+
+        public int openFile(FilePacket fp) {
+            roundTrip();
+            return content.length;
+        }
+
+        public FileInstance getFileVersion(String path) {
+            roundTrip();
+            return new FileInstance(content.length, 0);
+        }
+
+        public FileInstance getFileVersionLeased(String path, LeaseCallbackIf holder) {
+            return getFileVersion(path);
+        }
+
+        public FileDelta getFileDelta(String path, BlockChecksums sums) {
+            FileDelta delta = new FileDelta();
+            delta.fullFetch = true;
+            return delta;
+        }
+
+        public StreamTicket openStream(String path, long offset, long length, boolean upload) {
+            return new StreamTicket(FileHandling.Errors.ENOSYS);
+        }
+
+        public int finishStream(long id) {
+            return FileHandling.Errors.ENOSYS;
+        }
+
+        public int unlinkFile(String path) {
+            return 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = 8;
+        boolean fixed = true;
+        for (String arg : args) {
+            if (arg.equals("--adaptive")) {
+                fixed = false;
+            } else {
+                sizeMb = Integer.parseInt(arg);
+            }
+        }
+        byte[] content = new byte[sizeMb << 20];
+
+        File out = File.createTempFile("fetchbench", null);
+        out.deleteOnExit();
+        RandomAccessFile rFile = new RandomAccessFile(out, "rw");
+        FileChannel channel = rFile.getChannel();
+
+        StringBuilder header = new StringBuilder(String.format("%8s", "RTT ms"));
+        for (int window : windows) {
+            header.append(String.format("%14s", "window " + window));
+        }
+        System.out.println(header + "   (MB/s, " + sizeMb + " MB file)");
+
+        for (double rtt : rtts) {
+            SlowServer server = new SlowServer(content, rtt);
+            StringBuilder line = new StringBuilder(String.format("%8.1f", rtt));
+            for (int window : windows) {
+                ChunkPipeline pipeline = new ChunkPipeline(window);
+                long start = System.nanoTime();
+                ChunkSizer sizer = fixed ? new ChunkSizer(Server.chunkSize, Server.chunkSize, Server.chunkSize)
+                                         : new ChunkSizer(4096, 1 << 20, Server.chunkSize);
+                int ret = pipeline.fetch(server, "bench", channel, content.length, sizer);
+                double secs = (System.nanoTime() - start) / 1e9;
+                if (ret < 0) {
+                    throw new IllegalStateException("fetch failed " + ret);
+                }
+                line.append(String.format("%14.1f", sizeMb / secs));
+            }
+            System.out.println(line);
+        }
+        rFile.close();
+    }
+}
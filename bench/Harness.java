@@ -0,0 +1,239 @@
+/*
+ * Harness.java
+ * This is a small benchmark harness in the spirit of JMH for the benches of the proxy
+ * Every benchmark is warmed up, then timed over a number of fixed-length iterations;
+ * the score is the mean time per operation with its 99.9% confidence interval
+ * Ops run in calibrated batches, so reading the clock stays out of the score
+ *
+ * Scores can be saved as a baseline, and a later run compared against it fails with
+ * exit code 1 if a benchmark got significantly slower, to gate performance regressions
+ *
+ * Options: --warmup=n --iterations=n --time=ms --filter=regex
+ *          --save=file --baseline=file --tolerance=fraction
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Harness {
+
+    // A benchmark: setup once, then op is called repeatedly and timed
+    public static abstract class Bench {
+        final String name;
+        final long bytesPerOp; // bytes moved by one op for throughput, 0 if it moves none
+
+        protected Bench(String name, long bytesPerOp) {
+            this.name = name;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        public void setup() throws Exception {
+        }
+
+        public abstract void op() throws Exception;
+
+        public void teardown() throws Exception {
+        }
+    }
+
+    private static class Result {
+        String name;
+        int count; // number of measured iterations
+        double mean; // ns per op
+        double error; // half width of the 99.9% confidence interval
+        long bytesPerOp;
+    }
+
+    // two-sided 99.9% quantiles of Student's t by degrees of freedom, 1 to 30
+    private static final double[] t999 = {
+        636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59,
+        4.44, 4.32, 4.22, 4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85,
+        3.82, 3.79, 3.77, 3.75, 3.73, 3.71, 3.69, 3.67, 3.66, 3.65
+    };
+
+    private static final long batchNanos = 1000000; // target duration of a batch of ops
+
+    private int warmup = 5;
+    private int iterations = 10;
+    private long iterationMs = 500;
+    private String filter = null;
+    private String savePath = null;
+    private String baselinePath = null;
+    private double tolerance = 0.10; // slowdown allowed before a significant one counts
+    private List<Result> results = new ArrayList<Result>();
+    private List<String> rest = new ArrayList<String>();
+
+    // Take the harness options out of args, the rest is left to the bench
+    public Harness(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Math.max(Integer.parseInt(arg.substring("--iterations=".length())), 2);
+            } else if (arg.startsWith("--time=")) {
+                iterationMs = Long.parseLong(arg.substring("--time=".length()));
+            } else if (arg.startsWith("--filter=")) {
+                filter = arg.substring("--filter=".length());
+            } else if (arg.startsWith("--save=")) {
+                savePath = arg.substring("--save=".length());
+            } else if (arg.startsWith("--baseline=")) {
+                baselinePath = arg.substring("--baseline=".length());
+            } else if (arg.startsWith("--tolerance=")) {
+                tolerance = Double.parseDouble(arg.substring("--tolerance=".length()));
+            } else {
+                rest.add(arg);
+            }
+        }
+    }
+
+    // Arguments not taken by the harness
+    public List<String> getArgs() {
+        return rest;
+    }
+
+    // Whether a benchmark is selected by --filter
+    public boolean selected(String name) {
+        return filter == null || name.matches(filter);
+    }
+
+    public void run(Bench bench) throws Exception {
+        if (!selected(bench.name)) {
+            return;
+        }
+        bench.setup();
+        try {
+            System.gc();
+            long batch = calibrate(bench);
+            for (int i = 0; i < warmup; i++) {
+                iteration(bench, batch);
+            }
+            double[] scores = new double[iterations];
+            for (int i = 0; i < iterations; i++) {
+                scores[i] = iteration(bench, batch);
+            }
+            results.add(summarize(bench, scores));
+        } finally {
+            bench.teardown();
+        }
+        print(results.get(results.size() - 1));
+    }
+
+    // Number of ops in a batch that takes about batchNanos
+    private long calibrate(Bench bench) throws Exception {
+        long batch = 1;
+        while (batch < (1L << 24)) {
+            long start = System.nanoTime();
+            for (long i = 0; i < batch; i++) {
+                bench.op();
+            }
+            if (System.nanoTime() - start >= batchNanos) {
+                break;
+            }
+            batch *= 2;
+        }
+        return batch;
+    }
+
+    // Run batches for one iteration, the score is ns per op
+    private double iteration(Bench bench, long batch) throws Exception {
+        long iterationNanos = iterationMs * 1000000;
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (long i = 0; i < batch; i++) {
+                bench.op();
+            }
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        return (double)elapsed / ops;
+    }
+
+    private Result summarize(Bench bench, double[] scores) {
+        Result result = new Result();
+        result.name = bench.name;
+        result.count = scores.length;
+        result.bytesPerOp = bench.bytesPerOp;
+        double sum = 0;
+        for (double score : scores) {
+            sum += score;
+        }
+        result.mean = sum / scores.length;
+        double var = 0;
+        for (double score : scores) {
+            var += (score - result.mean) * (score - result.mean);
+        }
+        double sd = Math.sqrt(var / (scores.length - 1));
+        int df = scores.length - 1;
+        double t = df <= t999.length ? t999[df - 1] : 3.29;
+        result.error = t * sd / Math.sqrt(scores.length);
+        return result;
+    }
+
+    private void print(Result result) {
+        String throughput = "";
+        if (result.bytesPerOp > 0) {
+            throughput = String.format("  %10.1f MB/s", result.bytesPerOp * 1e9 / result.mean / (1 << 20));
+        }
+        System.out.println(String.format("%-32s %4d %14.1f +- %10.1f ns/op%s",
+                                         result.name, result.count, result.mean, result.error, throughput));
+    }
+
+    /*
+     * Save the scores and compare them with the baseline, if asked to
+     * @return: 1 if a benchmark regressed against the baseline, 0 otherwise
+     */
+    public int finish() throws IOException {
+        if (savePath != null) {
+            PrintWriter out = new PrintWriter(new FileWriter(savePath));
+            try {
+                for (Result result : results) {
+                    out.println(result.name + " " + result.mean);
+                }
+            } finally {
+                out.close();
+            }
+        }
+        if (baselinePath == null) {
+            return 0;
+        }
+        Map<String, Double> baseline = new HashMap<String, Double>();
+        BufferedReader in = new BufferedReader(new FileReader(baselinePath));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length == 2) {
+                    baseline.put(parts[0], Double.parseDouble(parts[1]));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        int ret = 0;
+        for (Result result : results) {
+            Double base = baseline.get(result.name);
+            if (base == null) {
+                continue;
+            }
+            // slower beyond the tolerance, and not within the noise of this run
+            if (result.mean > base * (1 + tolerance) && result.mean - result.error > base) {
+                System.out.println(String.format("REGRESSION %s: %.1f ns/op, baseline %.1f ns/op",
+                                                 result.name, result.mean, base));
+                ret = 1;
+            }
+        }
+        return ret;
+    }
+}
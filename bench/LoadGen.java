@@ -0,0 +1,313 @@
+/*
+ * LoadGen.java
+ * This is a load generator driving many concurrent clients through one proxy against a local server
+ * Clients are created through FileHandlingFactory.newclient(), as RPCreceiver creates them for
+ * every connection, and the server is an in-process Server bound to a local RMI registry
+ * Every client runs closed-loop sessions drawn from an op mix on files of Zipf popularity
+ * and log-uniform sizes, and it reports throughput, latency percentiles per op,
+ * the hit ratio of the proxy cache and the bytes server read and wrote
+ *
+ * Ops of the mix: read (open, read to the end, close), write (open, seek, write, close),
+ * create (open a new file, write it, close) and unlink
+ *
+ * Usage: java LoadGen [--clients=64] [--duration=10] [--warmup=2] [--files=1000] [--skew=0.9]
+ *                     [--min-size=1024] [--max-size=1048576] [--cache=bytes] [--policy=lru]
+ *                     [--mix=read=80,write=15,create=3,unlink=2] [--think=ms] [--trace=file]
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LoadGen {
+
+    private static final String[] ops = {"read", "write", "create", "unlink"};
+
+    private static int clients = 64;
+    private static long durationMs = 10000;
+    private static long warmupMs = 2000;
+    private static int files = 1000;
+    private static double skew = 0.9;
+    private static int minSize = 1024;
+    private static int maxSize = 1 << 20;
+    private static long cacheLim = 64L << 20;
+    private static long thinkMs = 0;
+    private static int[] weights = {80, 15, 3, 2}; // of ops, in order
+
+    private static int[] sizes; // size of every file at server
+    private static double[] cdf; // Zipf popularity of the files
+    private static AtomicLong created = new AtomicLong(); // names of created files
+
+    private static volatile boolean measuring = false;
+    private static volatile boolean stopped = false;
+    private static LatencyHistogram[] latencies = new LatencyHistogram[ops.length];
+    private static AtomicLong[] errors = new AtomicLong[ops.length];
+    private static AtomicLong bytesRead = new AtomicLong(); // bytes read by clients
+    private static AtomicLong bytesWritten = new AtomicLong(); // bytes written by clients
+
+    private static Field proxyField(String name) throws Exception {
+        Field field = Proxy.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    private static void parse(String[] args) {
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(value);
+            } else if (arg.startsWith("--duration=")) {
+                durationMs = (long)(Double.parseDouble(value) * 1000);
+            } else if (arg.startsWith("--warmup=")) {
+                warmupMs = (long)(Double.parseDouble(value) * 1000);
+            } else if (arg.startsWith("--files=")) {
+                files = Integer.parseInt(value);
+            } else if (arg.startsWith("--skew=")) {
+                skew = Double.parseDouble(value);
+            } else if (arg.startsWith("--min-size=")) {
+                minSize = Integer.parseInt(value);
+            } else if (arg.startsWith("--max-size=")) {
+                maxSize = Integer.parseInt(value);
+            } else if (arg.startsWith("--cache=")) {
+                cacheLim = Long.parseLong(value);
+            } else if (arg.startsWith("--think=")) {
+                thinkMs = Long.parseLong(value);
+            } else if (arg.startsWith("--mix=")) {
+                weights = new int[ops.length];
+                for (String part : value.split(",")) {
+                    String[] kv = part.split("=");
+                    for (int i = 0; i < ops.length; i++) {
+                        if (ops[i].equals(kv[0])) {
+                            weights[i] = Integer.parseInt(kv[1]);
+                        }
+                    }
+                }
+            } else if (!arg.startsWith("--policy=") && !arg.startsWith("--trace=")) {
+                System.err.println("Unknown option " + arg);
+            }
+        }
+    }
+
+    // Delete a temporary directory with the files in it
+    private static void delete(File dir) {
+        File[] children = dir.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            children[i].delete();
+        }
+        dir.delete();
+    }
+
+    // Index of a file drawn by Zipf popularity
+    private static int pickFile(Random rand) {
+        double u = rand.nextDouble() * cdf[cdf.length - 1];
+        int lo = 0, hi = cdf.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) / 2;
+            if (cdf[mid] < u)	lo = mid + 1;
+            else 				hi = mid;
+        }
+        return lo;
+    }
+
+    private static int pickOp(Random rand) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int u = rand.nextInt(Math.max(total, 1));
+        for (int i = 0; i < weights.length; i++) {
+            u -= weights[i];
+            if (u < 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * Run one session of an op through a client
+     * @return: 0 if succeed, errno (negative) if failed
+     */
+    private static int session(FileHandling client, int op, Random rand, byte[] buf) {
+        int file = pickFile(rand);
+        String path = "f" + file;
+        switch (op) {
+        case 0: {
+            int fd = client.open(path, FileHandling.OpenOption.READ);
+            if (fd < 0) {
+                return fd;
+            }
+            long n;
+            while ((n = client.read(fd, buf)) > 0) {
+                if (measuring)	bytesRead.addAndGet(n);
+            }
+            client.close(fd);
+            return n < 0 ? (int)n : 0;
+        }
+        case 1: {
+            int fd = client.open(path, FileHandling.OpenOption.CREATE);
+            if (fd < 0) {
+                return fd;
+            }
+            int len = Math.min(buf.length, Math.max(sizes[file] / 16, 1));
+            client.lseek(fd, rand.nextInt(Math.max(sizes[file] - len, 1)), FileHandling.LseekOption.FROM_START);
+            long n = client.write(fd, Arrays.copyOf(buf, len));
+            if (n > 0 && measuring)	bytesWritten.addAndGet(n);
+            int ret = client.close(fd);
+            return n < 0 ? (int)n : ret;
+        }
+        case 2: {
+            int fd = client.open("new" + created.incrementAndGet(), FileHandling.OpenOption.CREATE_NEW);
+            if (fd < 0) {
+                return fd;
+            }
+            int len = Math.min(buf.length, sizes[file]);
+            long n = client.write(fd, Arrays.copyOf(buf, len));
+            if (n > 0 && measuring)	bytesWritten.addAndGet(n);
+            int ret = client.close(fd);
+            return n < 0 ? (int)n : ret;
+        }
+        default: {
+            // unlink a created file when there is one, so the popular set stays in place
+            long last = created.get();
+            return client.unlink(last > 0 ? "new" + (1 + rand.nextInt((int)last)) : path);
+        }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        parse(args);
+        File root = Files.createTempDirectory("loadgen-root").toFile();
+        File cache = Files.createTempDirectory("loadgen-cache").toFile();
+
+        // files at server, with log-uniform sizes
+        Random rand = new Random(42);
+        sizes = new int[files];
+        cdf = new double[files];
+        double sum = 0;
+        long total = 0;
+        for (int i = 0; i < files; i++) {
+            double logMin = Math.log(minSize), logMax = Math.log(Math.max(maxSize, minSize));
+            sizes[i] = (int)Math.exp(logMin + rand.nextDouble() * (logMax - logMin));
+            byte[] content = new byte[sizes[i]];
+            rand.nextBytes(content);
+            Files.write(new File(root, "f" + i).toPath(), content);
+            total += sizes[i];
+            sum += 1 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+
+        int port = 20000 + new Random().nextInt(10000);
+        LocateRegistry.createRegistry(port);
+        Naming.rebind(String.format("//127.0.0.1:%d/ServerService", port), new Server(root.getPath()));
+        proxyField("serverip").set(null, "127.0.0.1");
+        proxyField("serverport").set(null, "" + port);
+        proxyField("cachePath").set(null, cache.getPath());
+        proxyField("cacheLim").set(null, cacheLim);
+        for (String arg : args) {
+            if (arg.startsWith("--policy=")) {
+                proxyField("policyName").set(null, arg.substring("--policy=".length()));
+            } else if (arg.startsWith("--trace=")) {
+                proxyField("trace").set(null, new TraceWriter(arg.substring("--trace=".length())));
+            }
+        }
+        Constructor<?> k = Class.forName("Proxy$FileHandlingFactory").getDeclaredConstructor();
+        k.setAccessible(true);
+        FileHandlingMaking factory = (FileHandlingMaking)k.newInstance();
+
+        for (int i = 0; i < ops.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            errors[i] = new AtomicLong();
+        }
+        System.out.println(String.format("%d clients, %d files of %d bytes, cache of %d bytes",
+                                         clients, files, total, cacheLim));
+
+        final CountDownLatch done = new CountDownLatch(clients);
+        for (int c = 0; c < clients; c++) {
+            final FileHandling client = factory.newclient();
+            final Random clientRand = new Random(1000 + c);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    byte[] buf = new byte[65536];
+                    clientRand.nextBytes(buf);
+                    try {
+                        while (!stopped) {
+                            int op = pickOp(clientRand);
+                            long start = System.nanoTime();
+                            int ret = session(client, op, clientRand, buf);
+                            if (measuring) {
+                                latencies[op].record(System.nanoTime() - start);
+                                if (ret < 0)	errors[op].incrementAndGet();
+                            }
+                            if (thinkMs > 0) {
+                                Thread.sleep(thinkMs);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // stopped
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "client-" + c);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        Thread.sleep(warmupMs);
+        CacheStats cacheStats = (CacheStats)proxyField("cacheStats").get(null);
+        Metrics serverMetrics = Metrics.forName("server");
+        long requests0 = cacheStats.getRequests(), hits0 = cacheStats.getHits();
+        long serverRead0 = serverMetrics.counter("bytes.read").sum();
+        long serverWritten0 = serverMetrics.counter("bytes.written").sum();
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationMs);
+        measuring = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long requests = cacheStats.getRequests() - requests0, hits = cacheStats.getHits() - hits0;
+        long serverRead = serverMetrics.counter("bytes.read").sum() - serverRead0;
+        long serverWritten = serverMetrics.counter("bytes.written").sum() - serverWritten0;
+        stopped = true;
+        done.await();
+        TraceWriter trace = (TraceWriter)proxyField("trace").get(null);
+        if (trace != null) {
+            trace.close();
+        }
+
+        System.out.println(String.format("%8s %10s %10s %10s %10s %10s %10s %8s", "op", "count", "ops/s",
+                                         "p50 us", "p99 us", "p999 us", "max us", "errors"));
+        long count = 0;
+        for (int i = 0; i < ops.length; i++) {
+            LatencyHistogram h = latencies[i];
+            count += h.getCount();
+            if (h.getCount() == 0) {
+                continue;
+            }
+            System.out.println(String.format("%8s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %8d", ops[i],
+                                             h.getCount(), h.getCount() / seconds, h.getPercentile(50) / 1e3,
+                                             h.getPercentile(99) / 1e3, h.getPercentile(99.9) / 1e3,
+                                             h.getMax() / 1e3, errors[i].get()));
+        }
+        System.out.println(String.format("throughput %.1f sessions/s, clients read %.1f MB/s, wrote %.1f MB/s",
+                                         count / seconds, bytesRead.get() / seconds / (1 << 20),
+                                         bytesWritten.get() / seconds / (1 << 20)));
+        System.out.println(String.format("proxy hit ratio %.3f over %d opens", requests == 0 ? 0 : (double)hits / requests,
+                                         requests));
+        System.out.println(String.format("server read %.1f MB, wrote %.1f MB (%.1f MB/s)", serverRead / 1048576.0,
+                                         serverWritten / 1048576.0, (serverRead + serverWritten) / seconds / (1 << 20)));
+        delete(root);
+        delete(cache);
+        System.exit(0);
+    }
+}
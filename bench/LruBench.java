@@ -0,0 +1,94 @@
+/*
+ * LruBench.java
+ * This is a microbenchmark of the cache bookkeeping done by every open in the proxy
+ * A warm open promotes its master copy to the front of the LRU queue, a miss evicts
+ * from the tail and pushes the new copy into the front
+ * Keys are drawn from twice as many files as the queue holds, so about half of the opens
+ * miss and take the evict and push path
+ * It prints ns per open as the number of cached entries grows, for LruQueue and
+ * for the LinkedList scan it replaced
+ *
+ * Usage: java LruBench [ops per size]
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.LinkedList;
+import java.util.Random;
+
+public class LruBench {
+
+    private static final int[] sizes = {1000, 10000, 100000};
+    private static final int keySpace = 2; // files opened per cached entry
+
+    private static FileInstance node(int i) {
+        FileInstance fi = new FileInstance(-1, "f" + i, "f" + i, "/cache/f" + i, null, null, 1);
+        return fi;
+    }
+
+    // hit: promote a random entry, miss: evict the tail and push a new entry
+    // the queue starts with the first capacity nodes, the others are opened later
+    private static long runLruQueue(FileInstance[] nodes, int capacity, int ops, long seed) {
+        LruQueue q = new LruQueue();
+        for (int i = 0; i < capacity; i++) {
+            q.pushFront(nodes[i]);
+        }
+        Random rand = new Random(seed);
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            FileInstance fi = nodes[rand.nextInt(nodes.length)];
+            if (q.contains(fi)) {
+                q.moveToFront(fi);
+            } else {
+                q.remove(q.getTail());
+                q.pushFront(fi);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long runLinkedList(FileInstance[] nodes, int capacity, int ops, long seed) {
+        LinkedList<FileInstance> q = new LinkedList<FileInstance>();
+        for (int i = 0; i < capacity; i++) {
+            q.add(0, nodes[i]);
+        }
+        Random rand = new Random(seed);
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            FileInstance fi = nodes[rand.nextInt(nodes.length)];
+            int idx = q.indexOf(fi);
+            if (idx >= 0) {
+                q.remove(idx);
+                q.add(0, fi);
+            } else {
+                q.remove(q.size() - 1);
+                q.add(0, fi);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) {
+        int ops = 20000;
+        if (args.length > 0) {
+            ops = Integer.parseInt(args[0]);
+        }
+
+        System.out.println(String.format("%10s %18s %18s", "entries", "LruQueue ns/open", "LinkedList ns/open"));
+        for (int size : sizes) {
+            FileInstance[] nodes = new FileInstance[size * keySpace];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = node(i);
+            }
+            // warm up both paths before measuring
+            runLruQueue(nodes, size, ops, 1);
+            runLinkedList(nodes, size, Math.min(ops, 2000), 1);
+
+            long lru = runLruQueue(nodes, size, ops, 42);
+            long list = runLinkedList(nodes, size, ops, 42);
+            System.out.println(String.format("%10d %18.1f %18.1f", size,
+                                             (double) lru / ops, (double) list / ops));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * PolicyBench.java
+ * This benchmark replays one synthetic trace against every eviction policy of the proxy
+ * The trace draws files by Zipf popularity with sizes from 1 KB to 1 MB, and is
+ * interrupted by one-time sequential scans of files never seen again
+ * Every request is an open followed by a close, replayed the way the proxy calls the policy:
+ * the open counts a reference, the close only refreshes recency
+ * It prints the hit ratio and byte hit ratio of each policy for a cache of 10% of the files
+ *
+ * Usage: java PolicyBench [requests]
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.Random;
+
+public class PolicyBench {
+
+    private static final int files = 2000; // number of files with Zipf popularity
+    private static final double skew = 0.9; // Zipf exponent
+    private static final int scanEvery = 5000; // requests between scans
+    private static final int scanLength = 1000; // files in a scan
+
+    // Replay a trace of file ids with their sizes against a policy, each as an open and a close
+    private static CacheStats replay(EvictionPolicy policy, int[] trace, int[] sizes, long capacity) {
+        FileInstance[] nodes = new FileInstance[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            nodes[i] = new FileInstance(-1, "f" + i, "f" + i, "/cache/f" + i, null, null, sizes[i]);
+        }
+        CacheStats stats = new CacheStats();
+        for (int id : trace) {
+            FileInstance fi = nodes[id];
+            boolean hit = policy.contains(fi);
+            stats.record(hit, fi.fileSize);
+            if (hit) {
+                policy.access(fi);
+            } else if (fi.fileSize <= capacity) {
+                while (policy.getBytes() + fi.fileSize > capacity) {
+                    policy.evict();
+                }
+                policy.insert(fi);
+            }
+            policy.touch(fi); // close
+        }
+        return stats;
+    }
+
+    public static void main(String[] args) {
+        int requests = 200000;
+        if (args.length > 0) {
+            requests = Integer.parseInt(args[0]);
+        }
+        Random rand = new Random(42);
+
+        // popular files first, then room for the ids of the scans
+        int scans = requests / scanEvery;
+        int[] sizes = new int[files + scans * scanLength];
+        long total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = (int)Math.pow(2, 10 + rand.nextDouble() * 10);
+            if (i < files) {
+                total += sizes[i];
+            }
+        }
+        double[] cdf = new double[files];
+        double sum = 0;
+        for (int i = 0; i < files; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+
+        int[] trace = new int[requests + scans * scanLength];
+        int n = 0;
+        int nextScanId = files;
+        for (int i = 0; i < requests; i++) {
+            if (i > 0 && i % scanEvery == 0) {
+                for (int j = 0; j < scanLength; j++) {
+                    trace[n++] = nextScanId++;
+                }
+            }
+            double u = rand.nextDouble() * sum;
+            int lo = 0, hi = files - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) / 2;
+                if (cdf[mid] < u)	lo = mid + 1;
+                else 				hi = mid;
+            }
+            trace[n++] = lo;
+        }
+        int[] replayed = new int[n];
+        System.arraycopy(trace, 0, replayed, 0, n);
+
+        long capacity = total / 10;
+        System.out.println(String.format("%d requests, %d popular files, cache of %d bytes",
+                                         n, files, capacity));
+        System.out.println(String.format("%8s %10s %15s %12s", "policy", "hit ratio", "byte hit ratio", "ns/request"));
+        EvictionPolicy[] policies = {new LruPolicy(), new LfuPolicy(), new ArcPolicy(capacity), new GdsfPolicy()};
+        for (EvictionPolicy policy : policies) {
+            long start = System.nanoTime();
+            CacheStats stats = replay(policy, replayed, sizes, capacity);
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format("%8s %10.3f %15.3f %12.1f", policy.getName(),
+                                             stats.getHitRatio(), stats.getByteHitRatio(),
+                                             (double) elapsed / n));
+        }
+    }
+}
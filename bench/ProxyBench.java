@@ -0,0 +1,246 @@
+/*
+ * ProxyBench.java
+ * This is a benchmark suite of the cache, copy and transfer paths of the proxy, run by Harness
+ * Cache bookkeeping (updateCache, evictForFile) is timed as the number of cached entries grows,
+ * createCopy and getFileFromServer by file size, the latter against an in-process Server
+ * bound to a local RMI registry, and the RMI payloads by their serialization round trip
+ *
+ * FileHandler is private to Proxy, so it is built and called through reflection like
+ * RPCreceiver does; a call costs a few ns more than it does inside the proxy
+ *
+ * Usage: java ProxyBench [--policy=name] [harness options]
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.util.Random;
+
+public class ProxyBench {
+
+    private static final int[] entries = {1000, 100000}; // cached entries for the bookkeeping benches
+    private static final int[] copySizes = {4096, 1 << 20};
+    private static final int[] fetchSizes = {65536, 4 << 20};
+    private static final int payloadSize = Server.chunkSize;
+
+    private static File root; // files of the in-process server
+    private static File cache; // cache directory of the proxy
+
+    private static void setProxy(String name, Object value) throws Exception {
+        Field field = Proxy.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(null, value);
+    }
+
+    private static Method method(String name, Class<?>... params) throws Exception {
+        Method m = Class.forName("Proxy$FileHandler").getMethod(name, params);
+        m.setAccessible(true);
+        return m;
+    }
+
+    private static Object call(Method m, Object handler, Object... args) throws Exception {
+        try {
+            return m.invoke(handler, args);
+        } catch (InvocationTargetException e) {
+            throw (Exception)e.getCause();
+        }
+    }
+
+    // A fresh FileHandler over an empty cache of the given limit
+    private static Object newHandler(long cacheLim) throws Exception {
+        setProxy("cacheLim", cacheLim);
+        setProxy("policy", null);
+        setProxy("cacheSize", 0);
+        Constructor<?> k = Class.forName("Proxy$FileHandler").getDeclaredConstructor();
+        k.setAccessible(true);
+        return k.newInstance();
+    }
+
+    private static void writeFile(File file, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        Files.write(file.toPath(), content);
+    }
+
+    private static FileInstance node(int i) {
+        return new FileInstance(-1, "b" + i, "b" + i, cache.getPath() + "/b" + i, null, null, 1);
+    }
+
+    // Promote a random cached entry, as every warm open does
+    private static Harness.Bench updateCache(final int n) {
+        return new Harness.Bench("updateCache/" + n, 0) {
+            Object handler;
+            Method update;
+            FileInstance[] nodes = new FileInstance[n];
+            int[] picks = new int[1 << 16];
+            int next = 0;
+
+            public void setup() throws Exception {
+                handler = newHandler(Long.MAX_VALUE);
+                update = method("updateCache", FileInstance.class);
+                Method push = method("pushIntoCache", FileInstance.class);
+                Random rand = new Random(42);
+                for (int i = 0; i < n; i++) {
+                    nodes[i] = node(i);
+                    call(push, handler, nodes[i]);
+                }
+                for (int i = 0; i < picks.length; i++) {
+                    picks[i] = rand.nextInt(n);
+                }
+            }
+
+            public void op() throws Exception {
+                call(update, handler, nodes[picks[next++ & (picks.length - 1)]]);
+            }
+        };
+    }
+
+    // Make room for one more entry in a full cache and push it, as every miss does
+    private static Harness.Bench evictForFile(final int n) {
+        return new Harness.Bench("evictForFile/" + n, 0) {
+            Object handler;
+            Method evict;
+            Method push;
+            int next;
+
+            public void setup() throws Exception {
+                handler = newHandler(n);
+                evict = method("evictForFile", FileInstance.class);
+                push = method("pushReserved", FileInstance.class, int.class);
+                for (next = 0; next < n; next++) {
+                    call(push, handler, node(next), 0);
+                }
+            }
+
+            public void op() throws Exception {
+                FileInstance fi = node(next++);
+                call(evict, handler, fi);
+                call(push, handler, fi, fi.fileSize); // takes over the bytes evictForFile reserved
+            }
+        };
+    }
+
+    // Copy a master copy into a private copy of a fd, overwriting the last one
+    private static Harness.Bench createCopy(final int size) {
+        return new Harness.Bench("createCopy/" + size, size) {
+            Object handler;
+            Method copy;
+            String path = "copy" + size;
+
+            public void setup() throws Exception {
+                handler = newHandler(Long.MAX_VALUE);
+                copy = method("createCopy", String.class, int.class);
+                writeFile(new File(cache, path), size);
+            }
+
+            public void op() throws Exception {
+                call(copy, handler, path, 1);
+            }
+
+            public void teardown() {
+                new File(cache, path).delete();
+                new File(cache, path + "1").delete();
+            }
+        };
+    }
+
+    // Download a file from server over RMI into the cache directory
+    private static Harness.Bench getFileFromServer(final int size) {
+        return new Harness.Bench("getFileFromServer/" + size, size) {
+            Object handler;
+            Method fetch;
+            String path = "fetch" + size;
+
+            public void setup() throws Exception {
+                handler = newHandler(Long.MAX_VALUE);
+                fetch = method("getFileFromServer", String.class, String.class, FileHandling.OpenOption.class);
+                writeFile(new File(root, path), size);
+            }
+
+            public void op() throws Exception {
+                int ret = (Integer)call(fetch, handler, path, path, FileHandling.OpenOption.READ);
+                if (ret < 0) {
+                    throw new IOException("fetch of " + path + " failed: " + ret);
+                }
+            }
+
+            public void teardown() {
+                new File(root, path).delete();
+                new File(cache, path).delete();
+            }
+        };
+    }
+
+    // Serialize and deserialize an RMI payload, as both ends of a call do
+    private static Harness.Bench serialization(String name, final Object payload) {
+        return new Harness.Bench("serialize/" + name, payloadSize) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(payloadSize * 2);
+            Object last; // keeps the result alive, so it is not optimized away
+
+            public void op() throws Exception {
+                buf.reset();
+                ObjectOutputStream out = new ObjectOutputStream(buf);
+                out.writeObject(payload);
+                out.flush();
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buf.toByteArray()));
+                last = in.readObject();
+            }
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        Harness harness = new Harness(args);
+        for (String arg : harness.getArgs()) {
+            if (arg.startsWith("--policy=")) {
+                setProxy("policyName", arg.substring("--policy=".length()));
+            }
+        }
+
+        root = Files.createTempDirectory("proxybench-root").toFile();
+        cache = Files.createTempDirectory("proxybench-cache").toFile();
+        int port = 20000 + new Random().nextInt(10000);
+        LocateRegistry.createRegistry(port);
+        Naming.rebind(String.format("//127.0.0.1:%d/ServerService", port), new Server(root.getPath()));
+        setProxy("serverip", "127.0.0.1");
+        setProxy("serverport", "" + port);
+        setProxy("cachePath", cache.getPath());
+
+        for (int n : entries) {
+            harness.run(updateCache(n));
+        }
+        for (int n : entries) {
+            harness.run(evictForFile(n));
+        }
+        for (int size : copySizes) {
+            harness.run(createCopy(size));
+        }
+        for (int size : fetchSizes) {
+            harness.run(getFileFromServer(size));
+        }
+        Chunk chunk = new Chunk(payloadSize);
+        new Random(1).nextBytes(chunk.content);
+        harness.run(serialization("Chunk", chunk));
+        FilePacket fp = new FilePacket(payloadSize);
+        new Random(2).nextBytes(fp.content);
+        fp.path = "dir/file";
+        harness.run(serialization("FilePacket", fp));
+
+        root.delete();
+        cache.delete();
+        System.exit(harness.finish());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * AdmissionFilter.java
+ * This class decides whether a missed file is worth a place in the proxy cache
+ * Files too large relative to the cache are never admitted, and a doorkeeper Bloom filter
+ * only admits files requested before, so one-hit wonders do not evict the working set
+ * The doorkeeper is cleared once it has seen as many files as it is sized for, to age it
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.BitSet;
+
+public class AdmissionFilter {
+
+    private static final int hashes = 3; // number of bits set per path
+
+    private long maxBytes; // larger files are never admitted
+    private int bits; // size of the doorkeeper
+    private BitSet doorkeeper;
+    private int inserted = 0; // paths added since the last reset
+    private long admitted = 0;
+    private long declined = 0;
+
+    public AdmissionFilter(long maxBytes, int bits) {
+        this.maxBytes = maxBytes;
+        this.bits = Math.max(bits, 64);
+        doorkeeper = new BitSet(this.bits);
+    }
+
+    /*
+     * Decide whether to cache a file of size bytes
+     * A file that fits in the free space is always admitted, no one has to be evicted for it
+     * @return: true to cache it, false to stream it through a temporary copy
+     */
+    public synchronized boolean admit(String path, long size, long free) {
+        boolean seen = contains(path);
+        if (!seen) {
+            add(path);
+        }
+        if (size > maxBytes || (!seen && size > free)) {
+            declined++;
+            return false;
+        }
+        admitted++;
+        return true;
+    }
+
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    public synchronized long getDeclined() {
+        return declined;
+    }
+
+    private boolean contains(String path) {
+        int h = path.hashCode();
+        int step = mix(h);
+        for (int i = 0; i < hashes; i++) {
+            if (!doorkeeper.get(Math.floorMod(h + i * step, bits))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(String path) {
+        if (inserted >= bits / 8) {
+            doorkeeper.clear(); // forget old requests, keeps the false positive rate low
+            inserted = 0;
+        }
+        int h = path.hashCode();
+        int step = mix(h);
+        for (int i = 0; i < hashes; i++) {
+            doorkeeper.set(Math.floorMod(h + i * step, bits));
+        }
+        inserted++;
+    }
+
+    // Second hash for double hashing, odd so that it walks all bits
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h | 1;
+    }
+}
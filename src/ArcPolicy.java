@@ -0,0 +1,209 @@
+/*
+ * ArcPolicy.java
+ * This class is Adaptive Replacement Cache, measured in bytes
+ * T1 holds entries seen once and T2 entries seen again, so a one-time scan only churns T1
+ * Ghost lists B1 and B2 remember what was evicted from each, and a hit on a ghost
+ * moves the target size p of T1 towards the list that would have kept it
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+public class ArcPolicy implements EvictionPolicy {
+
+    private long capacity; // cache size in bytes
+    private double p = 0; // target size of T1 in bytes
+
+    // least recently used first
+    private LinkedHashMap<String, FileInstance> t1 = new LinkedHashMap<String, FileInstance>();
+    private LinkedHashMap<String, FileInstance> t2 = new LinkedHashMap<String, FileInstance>();
+    private LinkedHashMap<String, Integer> b1 = new LinkedHashMap<String, Integer>(); // path to size
+    private LinkedHashMap<String, Integer> b2 = new LinkedHashMap<String, Integer>();
+    private long t1Bytes = 0, t2Bytes = 0, b1Bytes = 0, b2Bytes = 0;
+
+    public ArcPolicy(long capacity) {
+        this.capacity = Math.max(capacity, 1);
+    }
+
+    public void insert(FileInstance fi) {
+        FileInstance old = t1.containsKey(fi.path) ? t1.get(fi.path) : t2.get(fi.path);
+        if (old != null) {
+            remove(old);
+        }
+        int size = fi.fileSize;
+        if (b1.containsKey(fi.path)) {
+            // T1 was too small to keep it
+            double delta = Math.max((double)b2Bytes / Math.max(b1Bytes, 1), 1) * Math.max(size, 1);
+            p = Math.min(p + delta, capacity);
+            b1Bytes -= b1.remove(fi.path);
+            t2.put(fi.path, fi);
+            t2Bytes += size;
+        } else if (b2.containsKey(fi.path)) {
+            // T2 was too small to keep it
+            double delta = Math.max((double)b1Bytes / Math.max(b2Bytes, 1), 1) * Math.max(size, 1);
+            p = Math.max(p - delta, 0);
+            b2Bytes -= b2.remove(fi.path);
+            t2.put(fi.path, fi);
+            t2Bytes += size;
+        } else {
+            t1.put(fi.path, fi);
+            t1Bytes += size;
+        }
+    }
+
+    public void access(FileInstance fi) {
+        if (fi == null) {
+            return;
+        }
+        if (t1.get(fi.path) == fi) {
+            t1.remove(fi.path);
+            t1Bytes -= fi.fileSize;
+            t2.put(fi.path, fi);
+            t2Bytes += fi.fileSize;
+        } else if (t2.get(fi.path) == fi) {
+            t2.remove(fi.path);
+            t2.put(fi.path, fi); // to the most recent end
+        }
+    }
+
+    // Most recent end of its own list, a T1 entry is not promoted
+    public void touch(FileInstance fi) {
+        if (fi == null) {
+            return;
+        }
+        if (t1.get(fi.path) == fi) {
+            t1.remove(fi.path);
+            t1.put(fi.path, fi);
+        } else if (t2.get(fi.path) == fi) {
+            t2.remove(fi.path);
+            t2.put(fi.path, fi);
+        }
+    }
+
+    public boolean remove(FileInstance fi) {
+        if (fi == null) {
+            return false;
+        }
+        if (t1.get(fi.path) == fi) {
+            t1.remove(fi.path);
+            t1Bytes -= fi.fileSize;
+            return true;
+        }
+        if (t2.get(fi.path) == fi) {
+            t2.remove(fi.path);
+            t2Bytes -= fi.fileSize;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean contains(FileInstance fi) {
+        return fi != null && (t1.get(fi.path) == fi || t2.get(fi.path) == fi);
+    }
+
+    public FileInstance evict() {
+        FileInstance victim;
+        if (!t1.isEmpty() && (t1Bytes > p || t2.isEmpty())) {
+            victim = first(t1);
+            t1.remove(victim.path);
+            t1Bytes -= victim.fileSize;
+            b1.put(victim.path, victim.fileSize);
+            b1Bytes += victim.fileSize;
+        } else if (!t2.isEmpty()) {
+            victim = first(t2);
+            t2.remove(victim.path);
+            t2Bytes -= victim.fileSize;
+            b2.put(victim.path, victim.fileSize);
+            b2Bytes += victim.fileSize;
+        } else {
+            return null;
+        }
+        trimGhosts();
+        return victim;
+    }
+
+    // The list picked as above first, the other one if all of its entries are pinned
+    public FileInstance evict(Predicate<FileInstance> pinned) {
+        boolean fromT1 = !t1.isEmpty() && (t1Bytes > p || t2.isEmpty());
+        FileInstance victim = firstUnpinned(fromT1 ? t1 : t2, pinned);
+        if (victim == null) {
+            fromT1 = !fromT1;
+            victim = firstUnpinned(fromT1 ? t1 : t2, pinned);
+        }
+        if (victim == null) {
+            return null;
+        }
+        if (fromT1) {
+            t1.remove(victim.path);
+            t1Bytes -= victim.fileSize;
+            b1.put(victim.path, victim.fileSize);
+            b1Bytes += victim.fileSize;
+        } else {
+            t2.remove(victim.path);
+            t2Bytes -= victim.fileSize;
+            b2.put(victim.path, victim.fileSize);
+            b2Bytes += victim.fileSize;
+        }
+        trimGhosts();
+        return victim;
+    }
+
+    public void resize(FileInstance fi, int size) {
+        if (t1.get(fi.path) == fi) {
+            t1Bytes += size - fi.fileSize;
+        } else if (t2.get(fi.path) == fi) {
+            t2Bytes += size - fi.fileSize;
+        }
+        fi.fileSize = size;
+    }
+
+    public long getBytes() {
+        return t1Bytes + t2Bytes;
+    }
+
+    public int size() {
+        return t1.size() + t2.size();
+    }
+
+    public String getName() {
+        return "arc";
+    }
+
+    // Ghosts remember at most a cache worth of bytes for each list
+    private void trimGhosts() {
+        trim(b1, capacity - t1Bytes, true);
+        trim(b2, 2 * capacity - t1Bytes - t2Bytes - b1Bytes, false);
+    }
+
+    private void trim(LinkedHashMap<String, Integer> ghosts, long limit, boolean isB1) {
+        Iterator<Integer> it = ghosts.values().iterator();
+        while ((isB1 ? b1Bytes : b2Bytes) > Math.max(limit, 0) && it.hasNext()) {
+            int size = it.next();
+            it.remove();
+            if (isB1) {
+                b1Bytes -= size;
+            } else {
+                b2Bytes -= size;
+            }
+        }
+    }
+
+    private static FileInstance first(LinkedHashMap<String, FileInstance> list) {
+        return list.values().iterator().next();
+    }
+
+    // Least recently used entry of a list that is not pinned, null if there is none
+    private static FileInstance firstUnpinned(LinkedHashMap<String, FileInstance> list,
+                                              Predicate<FileInstance> pinned) {
+        for (FileInstance fi : list.values()) {
+            if (!pinned.test(fi)) {
+                return fi;
+            }
+        }
+        return null;
+    }
+}
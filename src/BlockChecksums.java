@@ -0,0 +1,57 @@
+/*
+ * BlockChecksums.java
+ * This class is used to send the block checksums of a stale cached copy from proxy to server,
+ * so that server only sends back the blocks that differ
+ * It needs to be serializable because of RMI
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class BlockChecksums implements java.io.Serializable {
+    public int blockSize; // size of each block, the last partial block is not included
+    public int[] weak; // rolling checksum of each block
+    public byte[][] strong; // MD5 of each block
+
+    public BlockChecksums(int blockSize, int blockCnt) {
+        this.blockSize = blockSize;
+        weak = new int[blockCnt];
+        strong = new byte[blockCnt][];
+    }
+
+    // Block size for a file of len bytes, about the square root of it as in rsync
+    public static int blockSizeFor(long len) {
+        int size = (int)Math.sqrt((double)len);
+        if (size < 1024)	size = 1024;
+        if (size > Server.chunkSize)	size = Server.chunkSize;
+        return size;
+    }
+
+    // Compute checksums of all full blocks of a file
+    public static BlockChecksums of(RandomAccessFile file) throws IOException {
+        long len = file.length();
+        int blockSize = blockSizeFor(len);
+        BlockChecksums sums = new BlockChecksums(blockSize, (int)(len / blockSize));
+        byte[] buf = new byte[blockSize];
+        file.seek(0);
+        for (int i = 0; i < sums.weak.length; i++) {
+            file.readFully(buf);
+            sums.weak[i] = RollingChecksum.compute(buf, 0, blockSize);
+            sums.strong[i] = md5().digest(buf);
+        }
+        return sums;
+    }
+
+    public static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // MD5 is required on every Java platform
+        }
+    }
+}
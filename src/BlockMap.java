@@ -0,0 +1,81 @@
+/*
+ * BlockMap.java
+ * This class tracks which fixed-size blocks of one version of a file are in the proxy cache
+ * Every present block is stored as its own file in the cache and is its own LRU entry,
+ * so a large file is fetched and evicted block by block instead of as a whole
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class BlockMap {
+
+    public String path; // cache path of the file
+    public String serverPath; // path of the file at server
+    public long version; // modified time of the cached version
+    public int fileSize; // size of the file of this version
+    public int blockSize; // size of every block but the last one
+    public int openCnt = 0; // number of fds reading through this map, guarded by the path lock
+    public volatile boolean dropped = false; // blocks are removed from the cache, nothing is fetched any more
+
+    private BitSet present; // presence bitmap of the blocks
+    private ConcurrentHashMap<Integer, FileInstance> entries; // LRU entries of present blocks
+
+    public BlockMap(String path, String serverPath, long version, int fileSize, int blockSize) {
+        this.path = path;
+        this.serverPath = serverPath;
+        this.version = version;
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        present = new BitSet(getBlockCount());
+        entries = new ConcurrentHashMap<Integer, FileInstance>();
+    }
+
+    public int getBlockCount() {
+        return (int)(((long)fileSize + blockSize - 1) / blockSize);
+    }
+
+    // Size of a block, the last one may be short
+    public int getBlockLength(int idx) {
+        return (int)Math.min(blockSize, fileSize - (long)idx * blockSize);
+    }
+
+    // Cache path of a block, the version keeps blocks of different versions apart
+    public String getBlockName(int idx) {
+        return path + "#" + version + "." + idx;
+    }
+
+    public synchronized boolean isPresent(int idx) {
+        return present.get(idx);
+    }
+
+    // Number of blocks in the cache
+    public synchronized int getPresentCount() {
+        return present.cardinality();
+    }
+
+    // Mark a block as present with its LRU entry
+    public synchronized void set(int idx, FileInstance entry) {
+        present.set(idx);
+        entries.put(idx, entry);
+    }
+
+    // Mark a block as missing, e.g. when it is evicted
+    public synchronized void clear(int idx) {
+        present.clear(idx);
+        entries.remove(idx);
+    }
+
+    // LRU entry of a present block, null if it is missing
+    public FileInstance getEntry(int idx) {
+        return entries.get(idx);
+    }
+
+    // LRU entries of all present blocks
+    public Iterable<FileInstance> getEntries() {
+        return entries.values();
+    }
+}
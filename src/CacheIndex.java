@@ -0,0 +1,215 @@
+/*
+ * CacheIndex.java
+ * This class keeps a journal of the master copies in the proxy cache, so a restarted proxy
+ * picks its cache up again instead of downloading every file anew
+ * Every record is one appended line with its own CRC, a torn last line is ignored on load
+ * The journal is compacted into a snapshot of the live entries, written aside and renamed over it
+ * Accesses only order entries for eviction, they are batched and written by a background flusher
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class CacheIndex {
+
+    public static final String fileName = ".cache-index"; // name of the journal in the cache directory
+    private static final long flushInterval = 1000; // ms between writes of the batched accesses
+
+    public static class Entry {
+        public String path; // cache path of the master copy
+        public long version; // modified time of the cached version
+        public int size; // size of the master copy
+
+        Entry(String path, long version, int size) {
+            this.path = path;
+            this.version = version;
+            this.size = size;
+        }
+    }
+
+    private File journal;
+    private FileChannel out; // appends to the journal
+    private LinkedHashMap<String, Entry> live; // live entries, least recently used first
+    private int records = 0; // records in the journal
+    // paths used since the last flush, least recently used first, guarded by itself
+    private final LinkedHashSet<String> accessed = new LinkedHashSet<String>();
+
+    public CacheIndex(String cacheDir) {
+        journal = new File(cacheDir, fileName);
+        live = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        Thread flusher = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(flushInterval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    flush();
+                }
+            }
+        }, "cache-index-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }));
+    }
+
+    /*
+     * Read the journal and start appending to a compacted one
+     * @return: the live entries, least recently used first
+     */
+    public synchronized List<Entry> load() throws IOException {
+        live.clear();
+        if (journal.isFile()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(journal))) {
+                String line;
+                while ((line = in.readLine()) != null && apply(line)) {
+                }
+            }
+        }
+        compact();
+        return new ArrayList<Entry>(live.values());
+    }
+
+    // Start over with an empty journal, e.g. when the old one can't be read
+    public synchronized void reset() throws IOException {
+        live.clear();
+        journal.delete();
+        compact();
+    }
+
+    // A master copy of a version is in the cache
+    public synchronized void put(String path, long version, int size) {
+        live.put(path, new Entry(path, version, size));
+        append("P " + version + " " + size + " " + path);
+    }
+
+    // A master copy is used, it is only recorded until the next flush, so nothing waits on the disk
+    public void access(String path) {
+        synchronized (accessed) {
+            accessed.remove(path); // keep the last use only
+            accessed.add(path);
+        }
+    }
+
+    // Write the accesses recorded since the last flush
+    public synchronized void flush() {
+        append(null);
+    }
+
+    // A master copy left the cache
+    public synchronized void remove(String path) {
+        if (live.remove(path) != null) {
+            append("D 0 0 " + path);
+        }
+    }
+
+    // Apply one line of the journal, false if it is torn or corrupt
+    private boolean apply(String line) {
+        String[] parts = line.split(" ", 5);
+        if (parts.length != 5 || !parts[0].equals(crc(line.substring(parts[0].length() + 1)))) {
+            return false;
+        }
+        try {
+            String path = parts[4];
+            if (parts[1].equals("P")) {
+                live.put(path, new Entry(path, Long.parseLong(parts[2]), Integer.parseInt(parts[3])));
+            } else if (parts[1].equals("A")) {
+                live.get(path); // moves it to the most recent end
+            } else if (parts[1].equals("D")) {
+                live.remove(path);
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    // Append a record, after the accesses recorded before it; null appends the accesses only
+    private void append(String record) {
+        List<String> paths;
+        synchronized (accessed) {
+            paths = new ArrayList<String>(accessed);
+            accessed.clear();
+        }
+        StringBuilder sb = new StringBuilder();
+        int added = 0;
+        for (String path : paths) {
+            if (live.get(path) != null) { // moves it to the most recent end
+                String access = "A 0 0 " + path;
+                sb.append(crc(access)).append(' ').append(access).append('\n');
+                added++;
+            }
+        }
+        if (record != null) {
+            sb.append(crc(record)).append(' ').append(record).append('\n');
+            added++;
+        }
+        if (out == null || added == 0) {
+            return;
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            records += added;
+            if (records > 4 * live.size() + 1024) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.err.println("Cache index not written: " + e);
+        }
+    }
+
+    // Rewrite the journal as the live entries, in recency order
+    private void compact() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        File tmp = new File(journal.getPath() + ".tmp");
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : live.values()) {
+            String record = "P " + entry.version + " " + entry.size + " " + entry.path;
+            sb.append(crc(record)).append(' ').append(record).append('\n');
+        }
+        try (FileChannel snapshot = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                                                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                snapshot.write(buf);
+            }
+            snapshot.force(true);
+        }
+        Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        records = live.size();
+    }
+
+    private static String crc(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+}
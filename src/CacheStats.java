@@ -0,0 +1,51 @@
+/*
+ * CacheStats.java
+ * This class counts hits of the proxy cache by requests and by bytes,
+ * so that eviction policies can be compared on the same workload
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CacheStats {
+    private AtomicLong requests = new AtomicLong();
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong bytes = new AtomicLong(); // bytes of all requested files
+    private AtomicLong hitBytes = new AtomicLong(); // bytes of requested files found in the cache
+
+    // Record a request of a file of size bytes
+    public void record(boolean hit, long size) {
+        requests.incrementAndGet();
+        bytes.addAndGet(size);
+        if (hit) {
+            hits.incrementAndGet();
+            hitBytes.addAndGet(size);
+        }
+    }
+
+    public double getHitRatio() {
+        long total = requests.get();
+        return total == 0 ? 0 : (double)hits.get() / total;
+    }
+
+    public double getByteHitRatio() {
+        long total = bytes.get();
+        return total == 0 ? 0 : (double)hitBytes.get() / total;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d requests, hit ratio %.3f, byte hit ratio %.3f",
+                             requests.get(), getHitRatio(), getByteHitRatio());
+    }
+}
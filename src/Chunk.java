@@ -9,6 +9,8 @@
 public class Chunk implements java.io.Serializable {
     public byte[] content; // content to be transferred
     public int size; // size of the data
+    public boolean compressed = false; // if content is deflated, size is still the raw size
+    public long codecNanos = 0; // time server spent compressing the content
 	
     public Chunk(int size) {
         this.size = size;
@@ -0,0 +1,92 @@
+/*
+ * ChunkCodec.java
+ * This class compresses chunk payloads on the wire with Deflater/Inflater
+ * A quick entropy probe on a sample of the payload skips data that is already
+ * compressed or random, so no CPU is spent deflating what won't shrink
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class ChunkCodec {
+
+    private static final int minSize = 512; // smaller payloads are not worth the header and CPU
+    private static final int sampleSize = 4096; // number of bytes looked at by the probe
+    private static final double maxEntropy = 7.0; // bits per byte, above it data is treated as incompressible
+
+    // Estimate whether len bytes from off would compress, by the entropy of a sample
+    public static boolean worthCompressing(byte[] buf, int off, int len) {
+        if (len < minSize) {
+            return false;
+        }
+        int[] counts = new int[256];
+        int step = Math.max(len / sampleSize, 1);
+        int samples = 0;
+        for (int i = off; i < off + len; i += step) {
+            counts[buf[i] & 0xff]++;
+            samples++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double)count / samples;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2) < maxEntropy;
+    }
+
+    /*
+     * Deflate len bytes from off
+     * @return: compressed bytes, null if they are not smaller than the input
+     */
+    public static byte[] deflate(byte[] buf, int off, int len) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(buf, off, len);
+            deflater.finish();
+            byte[] out = new byte[len];
+            int size = 0;
+            while (!deflater.finished() && size < out.length) {
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            if (!deflater.finished()) {
+                return null; // did not shrink
+            }
+            byte[] result = new byte[size];
+            System.arraycopy(out, 0, result, 0, size);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /*
+     * Inflate data that was deflated from rawSize bytes
+     * @return: the original bytes, null if data is corrupt
+     */
+    public static byte[] inflate(byte[] data, int rawSize) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] out = new byte[rawSize];
+            int size = 0;
+            while (size < rawSize && !inflater.finished()) {
+                int n = inflater.inflate(out, size, rawSize - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null;
+                }
+                size += n;
+            }
+            return size == rawSize ? out : null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+}
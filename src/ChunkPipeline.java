@@ -0,0 +1,249 @@
+/*
+ * ChunkPipeline.java
+ * This class moves a file between proxy and server in RMI chunks,
+ * keeping a window of chunk requests outstanding instead of one at a time
+ * Chunks are written at their own offsets as they arrive, so they may complete in any order
+ * Payloads are compressed on the wire when compression is negotiated with server
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class ChunkPipeline {
+
+    private int window; // max number of chunk requests in flight per transfer
+    private ExecutorService pool; // threads issuing the requests, shared by all transfers
+    private volatile boolean compress = false; // if chunk payloads are compressed on the wire
+    private volatile Metrics metrics = null; // where RMI latencies and bytes are recorded, if any
+
+    public ChunkPipeline(int window) {
+        this.window = Math.max(window, 1);
+        pool = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "chunk-pipeline");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    // Turn on compression of chunk payloads, once server agreed to it
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    // Record RMI latencies and bytes moved in a registry
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /*
+     * Read length bytes of a file from server into out
+     * @return: 0 if succeed, errno (negative) if failed
+     */
+    public int fetch(final SystemCallIf server, final String serverPath, final FileChannel out,
+                     final int length, final ChunkSizer sizer) {
+        ExecutorCompletionService<Integer> done = new ExecutorCompletionService<Integer>(pool);
+        final TransferStats stats = new TransferStats();
+        int next = 0; // offset of the next chunk to request
+        int inFlight = 0;
+        int ret = 0;
+
+        // always read at least once, an empty file is a single empty chunk
+        do {
+            while (inFlight < window && (next < length || (length == 0 && next == 0))) {
+                final int offset = next;
+                final int size = sizer.next(length - next);
+                done.submit(new Callable<Integer>() {
+                    public Integer call() throws IOException {
+                        long start = System.nanoTime();
+                        Chunk chunk = read(server, serverPath, offset, size, 0, stats);
+                        if (chunk.size < 0) {
+                            return chunk.size; // return value < 0, then there is some error returned by server
+                        }
+                        sizer.record(size, System.nanoTime() - start);
+                        if (chunk.content.length < size && offset + chunk.content.length < length) {
+                            return FileHandling.Errors.EINVAL; // server did not honor the chunk size
+                        }
+                        ByteBuffer buf = ByteBuffer.wrap(chunk.content);
+                        long pos = offset;
+                        while (buf.hasRemaining()) {
+                            pos += out.write(buf, pos);
+                        }
+                        return 0;
+                    }
+                });
+                next += Math.max(size, 1);
+                inFlight++;
+            }
+            int chunkRet = take(done);
+            inFlight--;
+            if (chunkRet < 0 && ret == 0) {
+                ret = chunkRet;
+                next = length; // stop requesting, wait for the rest to drain
+            }
+        } while (inFlight > 0 || next < length);
+        report(false, serverPath, stats);
+        return ret;
+    }
+
+    /*
+     * Read one chunk of a file from server, inflated if it came compressed
+     * If version is non-zero and the file is no longer at it, server answers EBUSY
+     * @return: the chunk, its size is errno (negative) if failed
+     */
+    public Chunk read(SystemCallIf server, String serverPath, int offset, int size,
+                      long version, TransferStats stats) throws IOException {
+        FilePacket fp = new FilePacket(serverPath, null);
+        fp.offset = offset;
+        fp.chunkSize = size;
+        fp.version = version;
+        fp.compress = compress;
+        long start = System.nanoTime();
+        Chunk chunk = server.readFile(fp);
+        if (chunk.size < 0) {
+            return chunk;
+        }
+        int wireSize = chunk.content.length;
+        Metrics m = metrics;
+        if (m != null) {
+            m.histogram("rmi.readFile").record(System.nanoTime() - start);
+            m.counter("bytes.fetched").add(wireSize);
+        }
+        boolean compressed = chunk.compressed;
+        long codecNanos = 0;
+        if (compressed) {
+            long codecStart = System.nanoTime();
+            chunk.content = ChunkCodec.inflate(chunk.content, chunk.size);
+            codecNanos = System.nanoTime() - codecStart;
+            if (chunk.content == null) {
+                chunk = new Chunk(0);
+                chunk.size = FileHandling.Errors.EINVAL; // corrupt payload
+                return chunk;
+            }
+            chunk.compressed = false;
+        }
+        if (stats != null) {
+            stats.add(chunk.content.length, wireSize, compressed, codecNanos, chunk.codecNanos);
+        }
+        return chunk;
+    }
+
+    /*
+     * Write [start, end) of a file to server from in
+     * @return: 0 if succeed, errno (negative) if failed
+     */
+    public int upload(final SystemCallIf server, final String serverPath, final FileChannel in,
+                      long start, long end, final ChunkSizer sizer) {
+        ExecutorCompletionService<Integer> done = new ExecutorCompletionService<Integer>(pool);
+        final TransferStats stats = new TransferStats();
+        long next = start;
+        int inFlight = 0;
+        int ret = 0;
+
+        while (next < end || inFlight > 0) {
+            while (inFlight < window && next < end) {
+                final long offset = next;
+                final int byteToWrite = sizer.next(end - next);
+                done.submit(new Callable<Integer>() {
+                    public Integer call() throws IOException {
+                        FilePacket fp = new FilePacket(byteToWrite);
+                        ByteBuffer buf = ByteBuffer.wrap(fp.content);
+                        long pos = offset;
+                        while (buf.hasRemaining()) {
+                            int n = in.read(buf, pos);
+                            if (n < 0)	break;
+                            pos += n;
+                        }
+                        fp.offset = (int)offset;
+                        long codecNanos = 0;
+                        if (compress && ChunkCodec.worthCompressing(fp.content, 0, fp.content.length)) {
+                            long codecStart = System.nanoTime();
+                            byte[] deflated = ChunkCodec.deflate(fp.content, 0, fp.content.length);
+                            codecNanos = System.nanoTime() - codecStart;
+                            if (deflated != null) {
+                                fp.rawSize = fp.content.length;
+                                fp.content = deflated;
+                                fp.compressed = true;
+                            }
+                        }
+                        stats.add(fp.compressed ? fp.rawSize : fp.content.length, fp.content.length,
+                                  fp.compressed, codecNanos, 0);
+                        long start = System.nanoTime();
+                        int writeLen = server.writeFile(serverPath, fp);
+                        long nanos = System.nanoTime() - start;
+                        sizer.record(byteToWrite, nanos);
+                        Metrics m = metrics;
+                        if (m != null) {
+                            m.histogram("rmi.writeFile").record(nanos);
+                            m.counter("bytes.uploaded").add(fp.content.length);
+                        }
+                        return writeLen < 0 ? writeLen : 0;
+                    }
+                });
+                next += byteToWrite;
+                inFlight++;
+            }
+            int chunkRet = take(done);
+            inFlight--;
+            if (chunkRet < 0 && ret == 0) {
+                ret = chunkRet;
+                next = end; // stop sending, wait for the rest to drain
+            }
+        }
+        report(true, serverPath, stats);
+        return ret;
+    }
+
+    // Count the compression stats of a transfer, and log them at debug level
+    private void report(boolean upload, String serverPath, TransferStats stats) {
+        if (!compress || stats.chunks.get() == 0) {
+            return;
+        }
+        Metrics m = metrics;
+        if (m != null) {
+            m.counter("compress.rawBytes").add(stats.rawBytes.get());
+            m.counter("compress.wireBytes").add(stats.wireBytes.get());
+            m.counter("compress.codecNanos").add(stats.localCodecNanos.get());
+            m.counter("compress.remoteCodecNanos").add(stats.remoteCodecNanos.get());
+            m.counter("compress.compressedChunks").add(stats.compressedChunks.get());
+        }
+        if (EventLog.enabled(EventLog.DEBUG)) {
+            EventLog.debug(upload ? "Upload compressed" : "Fetch compressed", serverPath, -1,
+                           stats.wireBytes.get());
+            EventLog.debug(upload ? "Upload chunks compressed" : "Fetch chunks compressed", serverPath, -1,
+                           stats.compressedChunks.get());
+            EventLog.debug(upload ? "Upload ratio x100" : "Fetch ratio x100", serverPath, -1,
+                           Math.round(stats.getRatio() * 100));
+            EventLog.debug(upload ? "Upload codec ns" : "Fetch codec ns", serverPath, -1,
+                           stats.localCodecNanos.get() + stats.remoteCodecNanos.get());
+        }
+    }
+
+    // Wait for the next chunk to complete, errno (negative) if it failed
+    private int take(ExecutorCompletionService<Integer> done) {
+        try {
+            return done.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return FileHandling.Errors.EINVAL;
+        } catch (ExecutionException e) {
+            System.err.println("Chunk transfer failed: " + e.getCause());
+            return FileHandling.Errors.EINVAL;
+        }
+    }
+}
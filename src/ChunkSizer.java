@@ -0,0 +1,70 @@
+/*
+ * ChunkSizer.java
+ * This class picks the size of RMI chunks between proxy and server
+ * The size grows from observed throughput in the style of TCP slow start: it doubles while
+ * throughput keeps up, then grows linearly past the threshold, and halves when it drops
+ * Sizes stay within the minimum and the maximum negotiated with server
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+public class ChunkSizer {
+
+    private int min; // smallest chunk size
+    private int max; // largest chunk size, as negotiated with server
+    private int current; // size of the next full chunk
+    private int threshold; // slow start threshold, growth is linear above it
+    private double rate = 0; // smoothed throughput of full chunks in bytes per ns
+
+    public ChunkSizer(int min, int max, int initial) {
+        this.min = Math.max(min, 1);
+        this.max = Math.max(max, this.min);
+        this.current = Math.min(Math.max(initial, this.min), this.max);
+        this.threshold = this.max;
+    }
+
+    // Size of the next chunk given the bytes left in the transfer
+    public synchronized int next(long remaining) {
+        return (int)Math.max(Math.min(current, remaining), 0);
+    }
+
+    public synchronized int getCurrent() {
+        return current;
+    }
+
+    public synchronized int getMax() {
+        return max;
+    }
+
+    // Set the largest chunk size, e.g. once server has told its limit
+    public synchronized void setMax(int max) {
+        this.max = Math.max(max, min);
+        current = Math.min(current, this.max);
+        threshold = Math.min(threshold, this.max);
+    }
+
+    /*
+     * Record a completed chunk and adapt the size
+     * Only full chunks are used, the tail of a file says nothing about the link
+     */
+    public synchronized void record(int size, long nanos) {
+        if (size < current || nanos <= 0) {
+            return;
+        }
+        double sample = (double)size / nanos;
+        if (rate == 0 || sample >= rate * 0.9) {
+            // throughput keeps up, grow
+            if (current < threshold) {
+                current = Math.min(current * 2, max);
+            } else {
+                current = Math.min(current + min, max);
+            }
+        } else {
+            // throughput dropped, back off
+            threshold = Math.max(current / 2, min);
+            current = threshold;
+        }
+        rate = rate == 0 ? sample : rate * 0.75 + sample * 0.25;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * DirtyRanges.java
+ * This class records the byte ranges of a private copy modified by a fd
+ * Ranges are kept sorted and merged, so that close only writes back what was changed
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.Map;
+import java.util.TreeMap;
+
+public class DirtyRanges {
+
+    private TreeMap<Long, Long> ranges; // start offset to end offset (exclusive)
+
+    public DirtyRanges() {
+        ranges = new TreeMap<Long, Long>();
+    }
+
+    // Mark [start, end) as dirty, merging with overlapping or adjacent ranges
+    public void add(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        Map.Entry<Long, Long> prev = ranges.floorEntry(start);
+        if (prev != null && prev.getValue() >= start) {
+            start = prev.getKey();
+            end = Math.max(end, prev.getValue());
+            ranges.remove(prev.getKey());
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+    }
+
+    public boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    // Total number of dirty bytes
+    public long size() {
+        long total = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            total += range.getValue() - range.getKey();
+        }
+        return total;
+    }
+
+    // Sorted, non-overlapping dirty ranges, start offset to end offset (exclusive)
+    public Map<Long, Long> getRanges() {
+        return ranges;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * EventLog.java
+ * This class is an asynchronous event logger for the hot paths of proxy and server
+ * An event is a constant name, a path, a fd and a number, copied into a preallocated ring
+ * buffer and formatted by a background thread, so callers neither allocate nor contend
+ * on the stderr lock; a disabled level costs one volatile read
+ * Debug events can be narrowed to one path prefix or one fd; when the ring is full,
+ * events are dropped and counted instead of blocking the caller
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class EventLog {
+
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    public static final int OFF = 4;
+
+    private static final String[] levelNames = {"DEBUG", "INFO", "WARN", "ERROR"};
+
+    private static final int capacity = 8192; // slots of the ring, a power of two
+    private static final int mask = capacity - 1;
+
+    private static volatile int level = INFO; // least level logged
+    private static volatile String pathFilter = null; // debug events only of paths with this prefix
+    private static volatile long fdFilter = -1; // debug events only of this fd, -1 for all
+
+    // slots of the ring, a slot is published by setting its sequence to its position + 1
+    private static final long[] times = new long[capacity];
+    private static final int[] levels = new int[capacity];
+    private static final String[] events = new String[capacity];
+    private static final String[] paths = new String[capacity];
+    private static final long[] fds = new long[capacity];
+    private static final long[] rets = new long[capacity];
+    private static final AtomicLongArray published = new AtomicLongArray(capacity);
+
+    private static final AtomicLong tail = new AtomicLong(); // next position to claim
+    private static volatile long head = 0; // next position to drain
+    private static final AtomicLong dropped = new AtomicLong(); // events lost to a full ring
+
+    private static PrintStream out = System.err;
+    private static final DateTimeFormatter clock = DateTimeFormatter.ofPattern("HH:mm:ss.SSS")
+                                                                    .withZone(ZoneId.systemDefault());
+    private static final StringBuilder sb = new StringBuilder(); // lines being formatted, by the drain only
+
+    static {
+        Thread drain = new Thread(new Runnable() {
+            public void run() {
+                drainLoop();
+            }
+        }, "event-log");
+        drain.setDaemon(true);
+        drain.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                drainAll();
+            }
+        }));
+    }
+
+    // Set the least level logged by its name, e.g. from --log-level
+    public static void setLevel(String name) {
+        for (int i = 0; i < levelNames.length; i++) {
+            if (levelNames[i].equalsIgnoreCase(name)) {
+                level = i;
+                return;
+            }
+        }
+        level = name.equalsIgnoreCase("off") ? OFF : INFO;
+    }
+
+    // Log debug events only of paths starting with prefix, null for all
+    public static void setPathFilter(String prefix) {
+        pathFilter = prefix;
+    }
+
+    // Log debug events only of a fd, -1 for all
+    public static void setFdFilter(long fd) {
+        fdFilter = fd;
+    }
+
+    public static boolean enabled(int lvl) {
+        return lvl >= level;
+    }
+
+    public static void debug(String event, String path, long fd, long ret) {
+        if (DEBUG < level) {
+            return;
+        }
+        String prefix = pathFilter;
+        long onlyFd = fdFilter;
+        if ((prefix != null && (path == null || !path.startsWith(prefix))) || (onlyFd >= 0 && fd != onlyFd)) {
+            return;
+        }
+        append(DEBUG, event, path, fd, ret);
+    }
+
+    public static void info(String event, String path, long fd, long ret) {
+        if (INFO >= level) {
+            append(INFO, event, path, fd, ret);
+        }
+    }
+
+    public static void warn(String event, String path, long fd, long ret) {
+        if (WARN >= level) {
+            append(WARN, event, path, fd, ret);
+        }
+    }
+
+    public static void error(String event, String path, long fd, long ret) {
+        if (ERROR >= level) {
+            append(ERROR, event, path, fd, ret);
+        }
+    }
+
+    // Claim a slot, fill it in and publish it, or drop the event if the ring is full
+    private static void append(int lvl, String event, String path, long fd, long ret) {
+        long pos;
+        do {
+            pos = tail.get();
+            if (pos - head >= capacity) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(pos, pos + 1));
+        int idx = (int)pos & mask;
+        times[idx] = System.currentTimeMillis();
+        levels[idx] = lvl;
+        events[idx] = event;
+        paths[idx] = path;
+        fds[idx] = fd;
+        rets[idx] = ret;
+        published.set(idx, pos + 1);
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            if (!drainAll()) {
+                LockSupport.parkNanos(1000000); // idle, look again in 1 ms
+            }
+        }
+    }
+
+    // Print every published event, in order
+    // @return: false if there was none
+    private static synchronized boolean drainAll() {
+        boolean any = false;
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            sb.append("event log dropped ").append(lost).append(" events\n");
+        }
+        while (true) {
+            long pos = head;
+            int idx = (int)pos & mask;
+            if (published.get(idx) != pos + 1) {
+                break;
+            }
+            sb.append(clock.format(Instant.ofEpochMilli(times[idx]))).append(' ')
+              .append(levelNames[levels[idx]]).append(' ').append(events[idx]);
+            if (paths[idx] != null) {
+                sb.append(" path=").append(paths[idx]);
+            }
+            if (fds[idx] >= 0) {
+                sb.append(" fd=").append(fds[idx]);
+            }
+            sb.append(" ret=").append(rets[idx]).append('\n');
+            events[idx] = null;
+            paths[idx] = null;
+            head = pos + 1; // frees the slot
+            any = true;
+            if (sb.length() > 1 << 16) {
+                out.print(sb);
+                sb.setLength(0);
+            }
+        }
+        if (sb.length() > 0) {
+            out.print(sb);
+            out.flush();
+            sb.setLength(0);
+        }
+        return any || lost > 0;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * EvictionPolicy.java
+ * This interface decides which master copies and blocks leave the proxy cache
+ * Entries are FileInstance nodes keyed by their cache path, and sizes are in bytes
+ * Implementations are not thread safe, proxy calls them under its cache lock
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.function.Predicate;
+
+public interface EvictionPolicy {
+
+    // Add a new entry, an older entry under the same path is dropped first
+    public void insert(FileInstance fi);
+
+    // Record a hit on an entry, no-op if it is not in the cache
+    public void access(FileInstance fi);
+
+    // Refresh the recency of an entry without counting a reference, e.g. when a fd is closed
+    // No-op if it is not in the cache
+    public void touch(FileInstance fi);
+
+    // Drop an entry without evicting it, e.g. when it is replaced or unlinked
+    // Return false if the entry is not in the cache
+    public boolean remove(FileInstance fi);
+
+    // Check whether this very entry is in the cache
+    public boolean contains(FileInstance fi);
+
+    // Remove and return the entry to evict next, null if the cache is empty
+    public FileInstance evict();
+
+    // Same as evict, but entries pinned tests true for are skipped and keep their state
+    // Candidates are tested in eviction order, the first one not pinned is removed and returned
+    // Return null if every entry is pinned
+    public FileInstance evict(Predicate<FileInstance> pinned);
+
+    // Change the size of an entry, whether it is in the cache or not
+    public void resize(FileInstance fi, int size);
+
+    // Total size of the entries in the cache
+    public long getBytes();
+
+    public int size();
+
+    public String getName();
+}
@@ -0,0 +1,39 @@
+/*
+ * FileDelta.java
+ * This class is used to transfer the difference between a stale cached copy and the latest file
+ * from server to proxy
+ * The new file is rebuilt by going through blocks in order: a non-negative entry copies
+ * that block of the stale copy, -1 takes the next literal
+ * It needs to be serializable because of RMI
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.ArrayList;
+
+public class FileDelta implements java.io.Serializable {
+    public int retVal; // length of the latest file, errno (negative) if failed
+    public boolean fullFetch = false; // if the delta is not worth it, proxy should fetch the whole file
+    public ArrayList<Integer> blocks; // block index of the stale copy, or -1 for a literal
+    public ArrayList<byte[]> literals; // bytes not found in the stale copy
+    public long literalSize = 0; // total size of literals
+
+    public FileDelta() {
+        blocks = new ArrayList<Integer>();
+        literals = new ArrayList<byte[]>();
+    }
+
+    public void addBlock(int idx) {
+        blocks.add(idx);
+    }
+
+    public void addLiteral(byte[] content) {
+        if (content.length == 0) {
+            return;
+        }
+        blocks.add(-1);
+        literals.add(content);
+        literalSize += content.length;
+    }
+}
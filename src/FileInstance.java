@@ -7,6 +7,7 @@
  */
 
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 public class FileInstance implements java.io.Serializable {
     public int fd; // file descriptor
@@ -22,6 +23,19 @@ public class FileInstance implements java.io.Serializable {
     public int fileSize; // file size
     public long modifiedTime; // modified time as the version number of a file
     public int readerCnt = 0; // reader count if the file is read only
+    public long leaseTerm = 0; // read lease term in ms granted with this version, 0 if none
+    public transient ByteBuffer buffer = null; // contents of a shared read copy, mapped or in the memory tier
+    public transient boolean inMemory = false; // if the fd reads from the memory tier
+    public transient boolean bypass = false; // if the fd reads a temporary copy kept out of the cache
+    public transient String readThrough = null; // server path of a fd read straight from server, null otherwise
+    public transient DirtyRanges dirty = null; // ranges written through this fd if opened for writing
+    public transient FileInstance lruPrev = null; // previous (more recent) node in the proxy LRU queue
+    public transient FileInstance lruNext = null; // next (less recent) node in the proxy LRU queue
+    public transient BlockMap blocks = null; // block map of the file if it is cached in blocks
+    public int blockIdx = -1; // index of the block if this is the LRU entry of a block
+    public long position = 0; // position of a fd without its own RandomAccessFile, read in blocks or from a buffer
+    public long seqEnd = 0; // where the last read of the fd ended, for read-ahead
+    public int raWindow = 0; // number of blocks read ahead of the fd
 	
     public FileInstance(int fd, String path, String origPath, String absPath,
                         RandomAccessFile raf, String openOption, int size) {
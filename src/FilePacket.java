@@ -13,6 +13,12 @@ public class FilePacket implements java.io.Serializable{
     public String openOption = null; // open option for open operation
     public boolean isDir = false; // check whether a path is directory
     public int offset; // offset of the next chunk to read or write
+    public long length = -1; // if non-negative, the file is truncated to this length after the write
+    public int chunkSize = 0; // size of the chunk to read, 0 for the default of server
+    public boolean compress = false; // ask server to compress the chunk to read if worth it
+    public boolean compressed = false; // if content to write is deflated
+    public int rawSize = 0; // size of the content to write before compression
+    public long version = 0; // if non-zero, the chunk to read must come from this version (modified time)
 	
     // This constructor sets the default content length of 1024 for error handling in server
     public FilePacket() {
@@ -0,0 +1,20 @@
+/*
+ * GdsfPolicy.java
+ * This class is GreedyDual-Size-Frequency: the priority is L + freq / size,
+ * so small and often used files stay while large cold ones go first
+ * L is raised to the priority of every evicted entry, so old hits fade out
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+public class GdsfPolicy extends PriorityPolicy {
+
+    protected double priority(double inflation, long freq, int size) {
+        return inflation + (double)freq / Math.max(size, 1);
+    }
+
+    public String getName() {
+        return "gdsf";
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * HandleCache.java
+ * This class keeps the file channels opened by server, keyed by normalized absolute path,
+ * so a transfer in chunks opens the file once instead of once per chunk, and aliases
+ * such as "./foo" or "d/../foo" share the handle of "foo" and are dropped with it
+ * Handles are reference counted, the least recently used idle ones are closed
+ * when the cache is full, and idle ones are closed after a timeout
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class HandleCache {
+
+    public static class Handle {
+        public FileChannel channel; // channel for positional reads and writes
+        public boolean writable; // if the file could be opened for writing
+        String path; // absolute path of the file
+        int refs = 0; // number of callers using the handle
+        long lastUsed; // time of the last release in ms
+        boolean invalid = false; // removed from the cache, close once released
+
+        Handle(String path, FileChannel channel, boolean writable) {
+            this.path = path;
+            this.channel = channel;
+            this.writable = writable;
+        }
+    }
+
+    private int capacity; // max number of open handles
+    private long idleTimeout; // idle handles are closed after it in ms
+    private LinkedHashMap<String, Handle> handles; // in access order
+
+    public HandleCache(int capacity, long idleTimeout) {
+        this.capacity = capacity;
+        this.idleTimeout = idleTimeout;
+        handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+
+        Thread reaper = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(Math.max(HandleCache.this.idleTimeout / 2, 1));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    closeIdle();
+                }
+            }
+        }, "handle-cache-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /*
+     * Get the handle of a file, opening it if it is not in the cache
+     * The file is opened for writing if possible, for reading otherwise
+     * Every acquire must be paired with a release
+     */
+    public Handle acquire(String path) throws IOException {
+        path = key(path);
+        synchronized (this) {
+            Handle handle = handles.get(path);
+            if (handle != null) {
+                handle.refs++;
+                return handle;
+            }
+        }
+
+        // open outside the lock, another caller may race us to it
+        File file = new File(path);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(path); // never create a file here
+        }
+        RandomAccessFile rFile;
+        boolean writable = true;
+        try {
+            rFile = new RandomAccessFile(file, "rw");
+        } catch (FileNotFoundException e) {
+            if (file.isDirectory() || !file.canRead()) {
+                throw e;
+            }
+            rFile = new RandomAccessFile(file, "r");
+            writable = false;
+        }
+
+        synchronized (this) {
+            Handle handle = handles.get(path);
+            if (handle != null) {
+                rFile.close();
+            } else {
+                handle = new Handle(path, rFile.getChannel(), writable);
+                handles.put(path, handle);
+                evictOverflow();
+            }
+            handle.refs++;
+            return handle;
+        }
+    }
+
+    // Release a handle got from acquire
+    public synchronized void release(Handle handle) {
+        handle.refs--;
+        handle.lastUsed = System.currentTimeMillis();
+        if (handle.invalid && handle.refs == 0) {
+            close(handle);
+        }
+    }
+
+    // Drop the handle of a file, e.g. when it is unlinked
+    public synchronized void invalidate(String path) {
+        Handle handle = handles.remove(key(path));
+        if (handle == null) {
+            return;
+        }
+        handle.invalid = true;
+        if (handle.refs == 0) {
+            close(handle);
+        }
+    }
+
+    // Key of a file in the cache, "." and ".." are resolved without touching the file system
+    private static String key(String path) {
+        return Paths.get(path).normalize().toString();
+    }
+
+    // Close the least recently used idle handles while the cache is over capacity
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, Handle>> it = handles.entrySet().iterator();
+        while (handles.size() > capacity && it.hasNext()) {
+            Handle handle = it.next().getValue();
+            if (handle.refs == 0) {
+                it.remove();
+                close(handle);
+            }
+        }
+    }
+
+    // Close handles nobody used for idleTimeout
+    private synchronized void closeIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Handle>> it = handles.entrySet().iterator();
+        while (it.hasNext()) {
+            Handle handle = it.next().getValue();
+            if (handle.refs == 0 && now - handle.lastUsed >= idleTimeout) {
+                it.remove();
+                close(handle);
+            }
+        }
+    }
+
+    private void close(Handle handle) {
+        try {
+            handle.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
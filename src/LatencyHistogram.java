@@ -0,0 +1,85 @@
+/*
+ * LatencyHistogram.java
+ * This class is a lock-free histogram of latencies in ns, in the style of HdrHistogram
+ * Every power of two is split into 16 linear buckets, so a percentile is off by at most 1/16
+ * Recording is an atomic increment of one bucket, cheap enough for every syscall
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+    private static final int subBits = 4; // 16 buckets per power of two
+    private static final int subCount = 1 << subBits;
+    private static final int buckets = (64 - subBits + 1) * subCount;
+
+    private AtomicLongArray counts = new AtomicLongArray(buckets);
+    private LongAdder count = new LongAdder();
+    private LongAdder sum = new LongAdder();
+    private AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        count.increment();
+        sum.add(nanos);
+        if (nanos > max.get()) {
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    // Value at a percentile between 0 and 100, the upper bound of its bucket
+    public long getPercentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int indexOf(long value) {
+        if (value < subCount) {
+            return (int)value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value); // >= subBits
+        int sub = (int)(value >>> (exp - subBits)) & (subCount - 1);
+        return (exp - subBits + 1) * subCount + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < subCount) {
+            return index;
+        }
+        int exp = index / subCount + subBits - 1;
+        long sub = index % subCount;
+        return ((subCount + sub + 1) << (exp - subBits)) - 1;
+    }
+}
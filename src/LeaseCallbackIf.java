@@ -0,0 +1,15 @@
+
+/*
+ * This is the interface which should be implemented by proxy to receive lease revocations
+ * from server through RMI
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.rmi.*;
+
+public interface LeaseCallbackIf extends Remote {
+    // Revoke all read leases on a path, path is relative to the server root as in FileInstance.path
+    public void invalidate( String path ) throws RemoteException;
+}
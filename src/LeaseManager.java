@@ -0,0 +1,81 @@
+/*
+ * LeaseManager.java
+ * This class keeps the read leases granted by server on each path
+ * When a path changes, every holder is called back to drop its lease
+ * If a holder can't be reached, the revocation waits until that lease expires,
+ * so a change is never visible to a proxy still serving the old version
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class LeaseManager {
+
+    private long leaseTerm; // lease term in ms
+
+    // path relative to the server root to the expiry time of each holder's lease
+    private HashMap<String, HashMap<LeaseCallbackIf, Long>> leases;
+
+    public LeaseManager(long leaseTerm) {
+        this.leaseTerm = leaseTerm;
+        leases = new HashMap<String, HashMap<LeaseCallbackIf, Long>>();
+    }
+
+    /*
+     * Grant a read lease on path to holder
+     * @return: lease term in ms
+     */
+    public synchronized long grant(String path, LeaseCallbackIf holder) {
+        HashMap<LeaseCallbackIf, Long> holders = leases.get(path);
+        if (holders == null) {
+            holders = new HashMap<LeaseCallbackIf, Long>();
+            leases.put(path, holders);
+        }
+        holders.put(holder, System.currentTimeMillis() + leaseTerm);
+        return leaseTerm;
+    }
+
+    /*
+     * Revoke all leases on path, should be called after the change is applied
+     * Returns once every holder has dropped its lease or the lease has expired
+     */
+    public void revoke(String path) {
+        HashMap<LeaseCallbackIf, Long> holders;
+        synchronized (this) {
+            holders = leases.remove(path);
+        }
+        if (holders == null) {
+            return;
+        }
+
+        long waitUntil = 0; // latest expiry among holders that missed the revocation
+        long now = System.currentTimeMillis();
+        for (Map.Entry<LeaseCallbackIf, Long> entry : holders.entrySet()) {
+            if (entry.getValue() <= now) {
+                continue; // already expired
+            }
+            try {
+                entry.getKey().invalidate(path);
+            } catch (RemoteException e) {
+                System.err.println("Lease revocation missed on " + path + ": " + e);
+                waitUntil = Math.max(waitUntil, entry.getValue());
+            }
+        }
+
+        // wait out the leases of unreachable holders
+        long left = waitUntil - System.currentTimeMillis();
+        while (left > 0) {
+            try {
+                Thread.sleep(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            left = waitUntil - System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/*
+ * LfuPolicy.java
+ * This class evicts the least frequently used entry
+ * Counts start over when an entry comes back after eviction
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+public class LfuPolicy extends PriorityPolicy {
+
+    protected double priority(double inflation, long freq, int size) {
+        return freq;
+    }
+
+    public String getName() {
+        return "lfu";
+    }
+}
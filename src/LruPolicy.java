@@ -0,0 +1,78 @@
+/*
+ * LruPolicy.java
+ * This class evicts the least recently used entry, on top of LruQueue
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.function.Predicate;
+
+public class LruPolicy implements EvictionPolicy {
+
+    private LruQueue queue = new LruQueue();
+    private long bytes = 0;
+
+    public void insert(FileInstance fi) {
+        remove(queue.get(fi.path));
+        queue.pushFront(fi);
+        bytes += fi.fileSize;
+    }
+
+    public void access(FileInstance fi) {
+        queue.moveToFront(fi);
+    }
+
+    public void touch(FileInstance fi) {
+        queue.moveToFront(fi);
+    }
+
+    public boolean remove(FileInstance fi) {
+        if (!queue.remove(fi)) {
+            return false;
+        }
+        bytes -= fi.fileSize;
+        return true;
+    }
+
+    public boolean contains(FileInstance fi) {
+        return queue.contains(fi);
+    }
+
+    public FileInstance evict() {
+        FileInstance victim = queue.getTail();
+        if (victim != null) {
+            remove(victim);
+        }
+        return victim;
+    }
+
+    public FileInstance evict(Predicate<FileInstance> pinned) {
+        for (FileInstance fi = queue.getTail(); fi != null; fi = fi.lruPrev) {
+            if (!pinned.test(fi)) {
+                remove(fi);
+                return fi;
+            }
+        }
+        return null;
+    }
+
+    public void resize(FileInstance fi, int size) {
+        if (queue.contains(fi)) {
+            bytes += size - fi.fileSize;
+        }
+        fi.fileSize = size;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public String getName() {
+        return "lru";
+    }
+}
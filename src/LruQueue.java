@@ -0,0 +1,108 @@
+/*
+ * LruQueue.java
+ * This class is the LRU index of master copies in the proxy cache
+ * Nodes are linked intrusively through FileInstance and indexed by cache path,
+ * so lookup, promotion and removal are all O(1) regardless of the cache population
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.HashMap;
+
+public class LruQueue {
+    private HashMap<String, FileInstance> index; // cache path to node in the list
+    private FileInstance head = null; // most recently used node
+    private FileInstance tail = null; // least recently used node
+
+    public LruQueue() {
+        index = new HashMap<String, FileInstance>();
+    }
+
+    // Check whether this very node is in the queue
+    public boolean contains(FileInstance fi) {
+        return fi != null && index.get(fi.path) == fi;
+    }
+
+    // Get the node cached under a path, null if there is none
+    public FileInstance get(String path) {
+        return index.get(path);
+    }
+
+    // Push a node into the front of the queue
+    // An older node under the same path is unlinked first
+    public void pushFront(FileInstance fi) {
+        FileInstance old = index.get(fi.path);
+        if (old != null) {
+            unlink(old);
+        }
+        index.put(fi.path, fi);
+        linkFront(fi);
+    }
+
+    // Remove a node from the queue
+    // Return false if the node is not in the queue
+    public boolean remove(FileInstance fi) {
+        if (!contains(fi)) {
+            return false;
+        }
+        index.remove(fi.path);
+        unlink(fi);
+        return true;
+    }
+
+    // Move a node to the front of the queue
+    // Return false if the node is not in the queue
+    public boolean moveToFront(FileInstance fi) {
+        if (!contains(fi)) {
+            return false;
+        }
+        if (head == fi) {
+            return true; // If it is already the latest, then no need to update
+        }
+        unlink(fi);
+        linkFront(fi);
+        return true;
+    }
+
+    // Least recently used node, walk towards the front by lruPrev
+    public FileInstance getTail() {
+        return tail;
+    }
+
+    // Most recently used node, walk towards the back by lruNext
+    public FileInstance getHead() {
+        return head;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    private void linkFront(FileInstance fi) {
+        fi.lruPrev = null;
+        fi.lruNext = head;
+        if (head != null) {
+            head.lruPrev = fi;
+        }
+        head = fi;
+        if (tail == null) {
+            tail = fi;
+        }
+    }
+
+    private void unlink(FileInstance fi) {
+        if (fi.lruPrev != null) {
+            fi.lruPrev.lruNext = fi.lruNext;
+        } else {
+            head = fi.lruNext;
+        }
+        if (fi.lruNext != null) {
+            fi.lruNext.lruPrev = fi.lruPrev;
+        } else {
+            tail = fi.lruPrev;
+        }
+        fi.lruPrev = null;
+        fi.lruNext = null;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * MemoryTier.java
+ * This class keeps the contents of small master copies in memory, in front of the cache directory
+ * Readers of a small file are served from here without touching the disk
+ * Entries are kept per version within a byte budget, the least recently used ones go first
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MemoryTier {
+
+    private static class Entry {
+        long version; // modified time of the cached version
+        byte[] data; // contents of the file
+
+        Entry(long version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+
+    private long budget; // max number of bytes held
+    private int maxFileSize; // larger files are not held
+    private long used = 0; // number of bytes held
+    private long hits = 0;
+    private long misses = 0;
+    private LinkedHashMap<String, Entry> entries; // cache path to entry, in access order
+
+    public MemoryTier(long budget, int maxFileSize) {
+        this.budget = budget;
+        this.maxFileSize = maxFileSize;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    // Check whether a file of this size may be held
+    public boolean fits(int size) {
+        return size >= 0 && size <= maxFileSize && size <= budget;
+    }
+
+    // Contents of a version of a file, null if it is not held
+    public synchronized byte[] get(String path, long version) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.version != version) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.data;
+    }
+
+    /*
+     * Hold the contents of a version of a file, replacing any other version of it
+     * Least recently used entries are dropped to stay within the budget
+     * @return: the number of bytes dropped
+     */
+    public synchronized long put(String path, long version, byte[] data) {
+        long freed = remove(path);
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (used + data.length > budget && it.hasNext()) {
+            long size = it.next().getValue().data.length;
+            it.remove();
+            used -= size;
+            freed += size;
+        }
+        entries.put(path, new Entry(version, data));
+        used += data.length;
+        return freed;
+    }
+
+    /*
+     * Drop a file, e.g. when its master copy is replaced or evicted
+     * @return: the number of bytes dropped
+     */
+    public synchronized long remove(String path) {
+        Entry entry = entries.remove(path);
+        if (entry == null) {
+            return 0;
+        }
+        used -= entry.data.length;
+        return entry.data.length;
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Metrics.java
+ * This class is a registry of counters, gauges and latency histograms of a proxy or server
+ * Counters are striped LongAdders, so hot paths don't contend on them
+ * The registry is exposed as a JMX MBean and can be dumped as text periodically
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+public class Metrics implements DynamicMBean {
+
+    private static ConcurrentHashMap<String, Metrics> registries = new ConcurrentHashMap<String, Metrics>();
+
+    private String name;
+    private ConcurrentSkipListMap<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+    private ConcurrentSkipListMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<String, LongSupplier>();
+    private ConcurrentSkipListMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<String, LatencyHistogram>();
+    private Thread dumper = null;
+
+    private Metrics(String name) {
+        this.name = name;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName("Proxy440:type=Metrics,name=" + name));
+        } catch (Exception e) {
+            System.err.println("Metrics " + name + " not exposed over JMX: " + e);
+        }
+    }
+
+    // Registry of a name, created on first use
+    public static Metrics forName(String name) {
+        Metrics metrics = registries.get(name);
+        if (metrics == null) {
+            registries.putIfAbsent(name, new Metrics(name));
+            metrics = registries.get(name);
+        }
+        return metrics;
+    }
+
+    public LongAdder counter(String key) {
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            counters.putIfAbsent(key, new LongAdder());
+            counter = counters.get(key);
+        }
+        return counter;
+    }
+
+    public LatencyHistogram histogram(String key) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histograms.putIfAbsent(key, new LatencyHistogram());
+            histogram = histograms.get(key);
+        }
+        return histogram;
+    }
+
+    // A value read when it is reported, e.g. the cache size
+    public void gauge(String key, LongSupplier value) {
+        gauges.put(key, value);
+    }
+
+    // Print the registry to System.err every intervalMs, in the background
+    public synchronized void startDump(final long intervalMs) {
+        if (dumper != null || intervalMs <= 0) {
+            return;
+        }
+        dumper = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    System.err.print(dump());
+                }
+            }
+        }, "metrics-dump");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+    // Text report of all metrics, one per line, latencies in us
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("== metrics ").append(name).append(" ==\n");
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue().getAsLong()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            sb.append(String.format("%s count %d mean %.1f p50 %.1f p99 %.1f p999 %.1f max %.1f us%n",
+                                    entry.getKey(), h.getCount(), h.getMean() / 1e3,
+                                    h.getPercentile(50) / 1e3, h.getPercentile(99) / 1e3,
+                                    h.getPercentile(99.9) / 1e3, h.getMax() / 1e3));
+        }
+        return sb.toString();
+    }
+
+    // JMX attributes: counters and gauges by key, histograms as key.count, key.p50, ... in ns
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (counters.containsKey(attribute)) {
+            return counters.get(attribute).sum();
+        }
+        if (gauges.containsKey(attribute)) {
+            return gauges.get(attribute).getAsLong();
+        }
+        int dot = attribute.lastIndexOf('.');
+        LatencyHistogram h = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+        if (h != null) {
+            String stat = attribute.substring(dot + 1);
+            if (stat.equals("count"))	return h.getCount();
+            if (stat.equals("mean"))	return h.getMean();
+            if (stat.equals("p50"))		return h.getPercentile(50);
+            if (stat.equals("p99"))		return h.getPercentile(99);
+            if (stat.equals("p999"))	return h.getPercentile(99.9);
+            if (stat.equals("max"))		return h.getMax();
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // skipped, as JMX expects
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String action, Object[] params, String[] signature) {
+        return null;
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+        for (String key : counters.keySet()) {
+            attrs.add(new MBeanAttributeInfo(key, "long", "counter", true, false, false));
+        }
+        for (String key : gauges.keySet()) {
+            attrs.add(new MBeanAttributeInfo(key, "long", "gauge", true, false, false));
+        }
+        for (String key : histograms.keySet()) {
+            for (String stat : new String[]{"count", "mean", "p50", "p99", "p999", "max"}) {
+                attrs.add(new MBeanAttributeInfo(key + "." + stat, "long", "latency in ns", true, false, false));
+            }
+        }
+        return new MBeanInfo(Metrics.class.getName(), "Metrics of " + name,
+                             attrs.toArray(new MBeanAttributeInfo[0]), null,
+                             new MBeanOperationInfo[0], null);
+    }
+}
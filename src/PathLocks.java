@@ -0,0 +1,70 @@
+/*
+ * PathLocks.java
+ * This class is a lock table keyed by cache path
+ * Operations on the same file are serialized, operations on unrelated files run in parallel
+ * Entries are reference counted and dropped once no thread holds or waits for them
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class PathLocks {
+
+    private static class Entry {
+        ReentrantLock lock = new ReentrantLock();
+        int refs = 0; // number of threads holding or waiting for the lock
+    }
+
+    private HashMap<String, Entry> table;
+
+    public PathLocks() {
+        table = new HashMap<String, Entry>();
+    }
+
+    // Lock a path, blocks while another thread holds it
+    public void lock(String path) {
+        Entry entry;
+        synchronized (table) {
+            entry = table.get(path);
+            if (entry == null) {
+                entry = new Entry();
+                table.put(path, entry);
+            }
+            entry.refs++;
+        }
+        entry.lock.lock();
+    }
+
+    // Lock a path unless a thread holds it, this one included, never blocks
+    // Return false if it is held
+    public boolean tryLock(String path) {
+        synchronized (table) {
+            Entry entry = table.get(path);
+            if (entry == null) {
+                entry = new Entry();
+                table.put(path, entry);
+            }
+            if (entry.lock.isLocked() || !entry.lock.tryLock()) {
+                return false; // the holder keeps the entry in the table
+            }
+            entry.refs++;
+        }
+        return true;
+    }
+
+    // Unlock a path previously locked by this thread
+    public void unlock(String path) {
+        Entry entry;
+        synchronized (table) {
+            entry = table.get(path);
+            entry.refs--;
+            if (entry.refs == 0) {
+                table.remove(path);
+            }
+        }
+        entry.lock.unlock();
+    }
+}
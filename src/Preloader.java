@@ -0,0 +1,177 @@
+/*
+ * Preloader.java
+ * This class warms the proxy cache from a manifest before clients ask for the files
+ * Every line of the manifest is a path or a glob pattern, optionally led by a priority,
+ * higher priorities are loaded first; blank lines and lines starting with # are skipped
+ * Files are loaded in the background by a bounded number of threads, and progress is logged
+ * and read by the proxy as gauges of its metrics
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Preloader {
+
+    // What the preloader loads files into
+    public interface Target {
+        // Paths matching a glob pattern
+        public String[] expand(String glob) throws Exception;
+
+        // Load a file into the cache, return its size, 0 if it was cached already or errno (negative)
+        public int load(String path);
+    }
+
+    private static class Task implements Comparable<Task> {
+        String path;
+        int priority;
+        long seq; // order in the manifest, breaks ties
+
+        Task(String path, int priority, long seq) {
+            this.path = path;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        public int compareTo(Task other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(seq, other.seq);
+        }
+    }
+
+    private Target target;
+    private int threads; // max number of files loaded at a time
+    private PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<Task>();
+    private AtomicInteger total = new AtomicInteger();
+    private AtomicInteger done = new AtomicInteger();
+    private AtomicInteger failed = new AtomicInteger();
+    private AtomicLong bytes = new AtomicLong();
+
+    public Preloader(Target target, int threads) {
+        this.target = target;
+        this.threads = Math.max(threads, 1);
+    }
+
+    // Read a manifest and load its files in the background
+    public void start(final String manifest) {
+        Thread coordinator = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    enqueue(manifest);
+                } catch (IOException e) {
+                    System.err.println("Preload manifest " + manifest + " not read: " + e);
+                    return;
+                }
+                System.err.println("Preload of " + total.get() + " files started");
+                List<Thread> workers = new ArrayList<Thread>();
+                for (int i = 0; i < threads; i++) {
+                    Thread worker = new Thread(new Runnable() {
+                        public void run() {
+                            Task task;
+                            while ((task = queue.poll()) != null) {
+                                load(task);
+                            }
+                        }
+                    }, "preload");
+                    worker.setDaemon(true);
+                    worker.start();
+                    workers.add(worker);
+                }
+                for (Thread worker : workers) {
+                    try {
+                        worker.join();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                System.err.println("Preload finished: " + getProgress());
+            }
+        }, "preload-coordinator");
+        coordinator.setDaemon(true);
+        coordinator.start();
+    }
+
+    public String getProgress() {
+        return String.format("%d of %d files, %d failed or skipped, %d bytes loaded",
+                             done.get(), total.get(), failed.get(), bytes.get());
+    }
+
+    public int getTotal() {
+        return total.get();
+    }
+
+    public int getDone() {
+        return done.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public boolean isFinished() {
+        return done.get() == total.get() && queue.isEmpty();
+    }
+
+    private void enqueue(String manifest) throws IOException {
+        HashSet<String> seen = new HashSet<String>();
+        long seq = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int priority = 0;
+                String[] parts = line.split("\\s+", 2);
+                if (parts.length == 2 && parts[0].matches("-?\\d+")) {
+                    priority = Integer.parseInt(parts[0]);
+                    line = parts[1];
+                }
+                String[] paths = {line};
+                if (line.matches(".*[*?\\[{].*")) {
+                    try {
+                        paths = target.expand(line);
+                    } catch (Exception e) {
+                        System.err.println("Preload pattern " + line + " not expanded: " + e);
+                        continue;
+                    }
+                }
+                for (String path : paths) {
+                    if (seen.add(path)) {
+                        queue.add(new Task(path, priority, seq++));
+                        total.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    private void load(Task task) {
+        int ret = target.load(task.path);
+        if (ret < 0) {
+            failed.incrementAndGet();
+        } else {
+            bytes.addAndGet(ret);
+        }
+        int finished = done.incrementAndGet();
+        if (finished % 100 == 0) {
+            System.err.println("Preload: " + getProgress());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * PriorityPolicy.java
+ * This class evicts the entry of the lowest priority, ties go to the least recently used one
+ * Subclasses define the priority from the hit count and size of an entry, and the inflation
+ * value L, which is the priority of the last evicted entry (GreedyDual aging)
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+public abstract class PriorityPolicy implements EvictionPolicy {
+
+    private static class Node implements Comparable<Node> {
+        FileInstance fi;
+        long freq = 1; // number of references while cached
+        double priority;
+        long seq; // time of the last reference, breaks ties
+
+        Node(FileInstance fi) {
+            this.fi = fi;
+        }
+
+        public int compareTo(Node other) {
+            int cmp = Double.compare(priority, other.priority);
+            return cmp != 0 ? cmp : Long.compare(seq, other.seq);
+        }
+    }
+
+    private HashMap<String, Node> index = new HashMap<String, Node>();
+    private TreeSet<Node> order = new TreeSet<Node>(); // lowest priority first
+    private double inflation = 0; // L, priority of the last evicted entry
+    private long clock = 0;
+    private long bytes = 0;
+
+    // Priority of an entry referenced freq times
+    protected abstract double priority(double inflation, long freq, int size);
+
+    public void insert(FileInstance fi) {
+        Node old = index.get(fi.path);
+        if (old != null) {
+            remove(old.fi);
+        }
+        Node node = new Node(fi);
+        place(node);
+        index.put(fi.path, node);
+        bytes += fi.fileSize;
+    }
+
+    public void access(FileInstance fi) {
+        Node node = index.get(fi.path);
+        if (node == null || node.fi != fi) {
+            return;
+        }
+        order.remove(node);
+        node.freq++;
+        place(node);
+    }
+
+    // Only the tie-break time moves, priority and count stay
+    public void touch(FileInstance fi) {
+        if (!contains(fi)) {
+            return;
+        }
+        Node node = index.get(fi.path);
+        order.remove(node);
+        node.seq = clock++;
+        order.add(node);
+    }
+
+    public boolean remove(FileInstance fi) {
+        if (!contains(fi)) {
+            return false;
+        }
+        order.remove(index.remove(fi.path));
+        bytes -= fi.fileSize;
+        return true;
+    }
+
+    public boolean contains(FileInstance fi) {
+        Node node = fi == null ? null : index.get(fi.path);
+        return node != null && node.fi == fi;
+    }
+
+    public FileInstance evict() {
+        Node victim = order.pollFirst();
+        if (victim == null) {
+            return null;
+        }
+        index.remove(victim.fi.path);
+        bytes -= victim.fi.fileSize;
+        inflation = victim.priority;
+        return victim.fi;
+    }
+
+    public FileInstance evict(Predicate<FileInstance> pinned) {
+        for (Node node : order) {
+            if (!pinned.test(node.fi)) {
+                order.remove(node);
+                index.remove(node.fi.path);
+                bytes -= node.fi.fileSize;
+                inflation = node.priority;
+                return node.fi;
+            }
+        }
+        return null;
+    }
+
+    public void resize(FileInstance fi, int size) {
+        if (!contains(fi)) {
+            fi.fileSize = size;
+            return;
+        }
+        Node node = index.get(fi.path);
+        order.remove(node);
+        bytes += size - fi.fileSize;
+        fi.fileSize = size;
+        place(node);
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    private void place(Node node) {
+        node.priority = priority(inflation, node.freq, node.fi.fileSize);
+        node.seq = clock++;
+        order.add(node);
+    }
+}
@@ -10,13 +10,21 @@
 
 import java.io.*;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
 
 class Proxy {
     
@@ -24,20 +32,103 @@ class Proxy {
     private static String serverip = null;
     private static String serverport = null;
     private static long cacheLim = 0;
-    private static List<FileInstance> lruQueue;
+    
+    // Decides what leaves the cache, LRU unless another policy is chosen
+    private static String policyName = "lru";
+    private static EvictionPolicy policy;
+    
+    // Hits of the cache by requests and by bytes
+    private static CacheStats cacheStats = new CacheStats();
+    
+    // Latencies and counters of the proxy, exposed over JMX
+    private static Metrics metrics = Metrics.forName("proxy");
+    
+    // Print the metrics every this many ms, 0 to turn it off
+    private static long metricsInterval = 0;
     
     // all read copy of a file
-    private static HashMap<String, LinkedList<FileInstance>> readCopy;
+    private static ConcurrentHashMap<String, LinkedList<FileInstance>> readCopy;
     
     // HashMap to store which read copy of a fd is referred to
-    private static HashMap<Integer, FileInstance> fd2Copy;
+    private static ConcurrentHashMap<Integer, FileInstance> fd2Copy;
     
     // Record the latest version of a file
     // If the file is not in the cache, then there should be no entry in the hashmap
-    private static HashMap<String, Long> fileVersion;
+    private static ConcurrentHashMap<String, Long> fileVersion;
     
     // Path to FileInstance in the proxy, for LRU use
-    private static HashMap<String, FileInstance> path2fi;
+    private static ConcurrentHashMap<String, FileInstance> path2fi;
+    
+    // Cache path to the block map of a file cached in blocks
+    private static ConcurrentHashMap<String, BlockMap> path2blocks;
+    
+    // Per-path locks, opens of the same file are serialized on them
+    private static PathLocks pathLocks;
+    
+    // Bulk transfers go through the stream port of server instead of RMI chunks
+    private static boolean streaming = false;
+    
+    // Files larger than it opened for reading are cached in blocks of this size, 0 to turn it off
+    private static int blockSize = 0;
+    
+    // Max number of blocks read ahead of a sequential reader, 0 to turn it off
+    private static int readAheadMax = 8;
+    
+    // Background prefetch of blocks, null if read-ahead is off
+    private static ReadAhead readAhead = null;
+    
+    // Budget of the memory tier in bytes, 0 to turn it off
+    private static long memTierBudget = 0;
+    
+    // Largest file held in the memory tier
+    private static int memTierFileMax = 4096;
+    
+    // Small master copies held in memory, null if the memory tier is off
+    private static MemoryTier memTier = null;
+    
+    // Admission filter in front of the cache, null to admit every miss
+    private static AdmissionFilter admission = null;
+    
+    // Largest file admitted into the cache, as a fraction of cacheLim
+    private static double admitMax = 0.5;
+    
+    // Keep a journal of the cache to pick it up again after a restart
+    private static boolean persistIndex = false;
+    
+    // Journal of the master copies in the cache, null if it is not kept
+    private static CacheIndex cacheIndex = null;
+    
+    // Trace of opens, closes and unlinks for offline simulation, null if none is recorded
+    private static TraceWriter trace = null;
+    
+    // Warms the cache from a manifest at startup, null if there is none
+    private static Preloader preloader = null;
+    
+    // Ask server to compress chunk payloads on the wire
+    private static boolean compress = false;
+    
+    // Max number of chunk requests in flight per transfer
+    private static int window = 4;
+    
+    // Limits of the chunk size, the largest is negotiated with server
+    private static int minChunkSize = 4096;
+    private static int maxChunkSize = 1 << 20;
+    
+    // Largest chunk size agreed with server, 0 until a negotiation succeeds
+    // Every transfer adapts its chunk size on its own within it
+    private static volatile int negotiatedChunkSize = 0;
+    
+    // Pipelined chunk transfers over RMI
+    private static ChunkPipeline pipeline = null;
+    
+    // Read leases held by this proxy, null if lease mode is off
+    private static ProxyLeases leases = null;
+    
+    // Single-flight layer in front of getFileFromServer
+    private static SingleFlight<Integer> fetches;
+    
+    // Guards cacheSize and policy, only held for short bookkeeping
+    private static final Object cacheLock = new Object();
     
     // global cache size
     private static int cacheSize = 0;
@@ -45,6 +136,18 @@ class Proxy {
     // global fd
     private static int fd = 1000000;
     
+    // Allocate a new global fd
+    private static synchronized int nextFd() {
+        return fd++;
+    }
+    
+    // Add delta to the global cache size
+    private static void addCacheSize(int delta) {
+        synchronized (cacheLock) {
+            cacheSize += delta;
+        }
+    }
+    
     public static SystemCallIf getServerInstance(String ip, int port) {
         String url = String.format("//%s:%d/ServerService", ip, port);
         try {
@@ -80,46 +183,164 @@ class Proxy {
             
             if (server == null) System.exit(1); //You should handle errors properly.
             
-            // make lruQueue a singleton in the proxy
-            if (lruQueue == null) {
-                synchronized (List.class) {
-                    if (lruQueue == null) {
-                        lruQueue = new LinkedList<FileInstance>();
+            // make the eviction policy a singleton in the proxy
+            if (policy == null) {
+                synchronized (EvictionPolicy.class) {
+                    if (policy == null) {
+                        policy = newPolicy(policyName, cacheLim);
                     }
                 }
             }
             
             if (fileVersion == null) {
-                synchronized (HashMap.class) {
+                synchronized (ConcurrentHashMap.class) {
                     if (fileVersion == null) {
-                        fileVersion = new HashMap<String, Long>();
+                        fileVersion = new ConcurrentHashMap<String, Long>();
                     }
                 }
             }
             
             if (readCopy == null) {
-                synchronized (HashMap.class) {
+                synchronized (ConcurrentHashMap.class) {
                     if (readCopy == null) {
-                        readCopy = new HashMap<String, LinkedList<FileInstance>>();
+                        readCopy = new ConcurrentHashMap<String, LinkedList<FileInstance>>();
                     }
                 }
             }
             
             if (fd2Copy == null) {
-                synchronized (HashMap.class) {
+                synchronized (ConcurrentHashMap.class) {
                     if (fd2Copy == null) {
-                        fd2Copy = new HashMap<Integer, FileInstance>();
+                        fd2Copy = new ConcurrentHashMap<Integer, FileInstance>();
                     }
                 }
             }
             
             if (path2fi == null) {
-                synchronized (HashMap.class) {
+                synchronized (ConcurrentHashMap.class) {
                     if (path2fi == null) {
-                        path2fi = new HashMap<String, FileInstance>();
+                        path2fi = new ConcurrentHashMap<String, FileInstance>();
+                    }
+                }
+            }
+            
+            if (path2blocks == null) {
+                synchronized (ConcurrentHashMap.class) {
+                    if (path2blocks == null) {
+                        path2blocks = new ConcurrentHashMap<String, BlockMap>();
+                    }
+                }
+            }
+            
+            if (readAhead == null && blockSize > 0 && readAheadMax > 0) {
+                synchronized (ReadAhead.class) {
+                    if (readAhead == null) {
+                        readAhead = new ReadAhead(readAheadMax, window);
                     }
                 }
             }
+            
+            if (memTier == null && memTierBudget > 0) {
+                synchronized (MemoryTier.class) {
+                    if (memTier == null) {
+                        memTier = new MemoryTier(memTierBudget, memTierFileMax);
+                    }
+                }
+            }
+            
+            if (pipeline == null) {
+                synchronized (ChunkPipeline.class) {
+                    if (pipeline == null) {
+                        ChunkPipeline created = new ChunkPipeline(window);
+                        created.setMetrics(metrics);
+                        try {
+                            created.setCompress(server.negotiateCompression(compress));
+                        } catch (RemoteException e) {
+                            e.printStackTrace();
+                        }
+                        pipeline = created;
+                    }
+                }
+            }
+            
+            if (fetches == null) {
+                synchronized (SingleFlight.class) {
+                    if (fetches == null) {
+                        fetches = new SingleFlight<Integer>();
+                    }
+                }
+            }
+            
+            if (pathLocks == null) {
+                synchronized (PathLocks.class) {
+                    if (pathLocks == null) {
+                        pathLocks = new PathLocks();
+                    }
+                }
+            }
+            
+            if (cacheIndex == null && persistIndex) {
+                synchronized (CacheIndex.class) {
+                    if (cacheIndex == null && persistIndex) {
+                        restoreCache();
+                    }
+                }
+            }
+        }
+        
+        /*
+         * Load the master copies left by the previous run of the proxy from the cache index
+         * Entries whose file is gone or has another size are dropped, other files in the cache
+         * directory are copies of the previous run and are deleted
+         * Versions are checked against server by open as usual, so stale entries get refreshed
+         */
+        private void restoreCache() {
+            CacheIndex index = new CacheIndex(cachePath);
+            List<CacheIndex.Entry> entries;
+            try {
+                entries = index.load();
+            } catch (IOException e) {
+                // start with an empty cache and a fresh journal, the files left are wiped below
+                System.err.println("Cache index not loaded, starting empty: " + e);
+                entries = new ArrayList<CacheIndex.Entry>();
+                try {
+                    index.reset();
+                } catch (IOException e2) {
+                    System.err.println("Cache index not kept: " + e2);
+                    persistIndex = false; // so no other handler tries again
+                    return;
+                }
+            }
+            
+            HashMap<String, CacheIndex.Entry> restored = new HashMap<String, CacheIndex.Entry>();
+            for (CacheIndex.Entry entry : entries) {
+                String absPath = getCachePath(entry.path);
+                File file = new File(absPath);
+                if (!file.isFile() || file.length() != entry.size) {
+                    index.remove(entry.path);
+                    continue;
+                }
+                FileInstance origFi = new FileInstance(-1, entry.path, entry.path, absPath, null, null, entry.size);
+                fileVersion.put(entry.path, entry.version);
+                path2fi.put(entry.path, origFi);
+                pushIntoCache(origFi); // least recently used first, so recency is kept
+                restored.put(entry.path, entry);
+            }
+            
+            File[] files = new File(cachePath).listFiles();
+            for (int i = 0; files != null && i < files.length; i++) {
+                String name = files[i].getName();
+                if (files[i].isFile() && !restored.containsKey(name) && !name.startsWith(CacheIndex.fileName)) {
+                    files[i].delete();
+                }
+            }
+            cacheIndex = index;
+            
+            // the cache may have been started with a smaller limit this time
+            if (!evictForFile(new FileInstance(0, 0))) {
+                System.err.println("Cache index restored over the limit");
+            }
+            System.err.println("Cache index restored " + restored.size() + " files, " + cacheSize + " bytes");
         }
         
         /*
@@ -151,7 +372,7 @@ class Proxy {
         /*
          *  Get copy name by append fd to the back of the original path
          */
-        public synchronized String getNewName(String path) {
+        public String getNewName(String path, int fd) {
             StringBuilder sb = new StringBuilder(path);
             Integer newInt = new Integer(fd);
             sb.append(newInt.toString());
@@ -161,35 +382,38 @@ class Proxy {
         /*
          * Create a copy of the original one
          */
-        public String createCopy(String path) {
+        public String createCopy(String path, int fd) {
             // Generated new file path
-            String newPath = getNewName(path);
+            String newPath = getNewName(path, fd);
             
             // Abs path of original requested file
             String absPath = getCachePath(path);
             
-            // copy original file to cur file
-            InputStream input = null;
-            OutputStream output = null;
+            // copy original file to cur file channel to channel,
+            // so the kernel moves the bytes without going through a heap buffer
+            FileChannel input = null;
+            FileChannel output = null;
             try {
-                input = new FileInputStream(absPath);
-                output = new FileOutputStream(getCachePath(newPath));
-                byte[] buf = new byte[8096];
-                int bytesRead;
-                while ((bytesRead = input.read(buf)) > 0) {
-                    output.write(buf, 0, bytesRead);
+                input = new FileInputStream(absPath).getChannel();
+                output = new FileOutputStream(getCachePath(newPath)).getChannel();
+                long size = input.size();
+                long pos = 0;
+                while (pos < size) {
+                    long transferred = input.transferTo(pos, size - pos, output);
+                    if (transferred <= 0)	break; // source got shorter in the mean time
+                    pos += transferred;
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
             finally {
                 try {
-                    input.close();
+                    if (input != null)	input.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
                 try {
-                    output.close();
+                    if (output != null)	output.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -199,87 +423,103 @@ class Proxy {
         }
         
         public int open( String path, OpenOption o ) {
+            long start = System.nanoTime();
+            int ret = doOpen(path, o);
+            metrics.histogram("open").record(System.nanoTime() - start);
+            if (EventLog.enabled(EventLog.DEBUG)) {
+                EventLog.debug("open", path, ret, ret);
+            }
+            return ret;
+        }
+        
+        private int doOpen( String path, OpenOption o ) {
             
             try {
                 
                 String newPath = path; // new path of a file in cache, may be a copy name of the file
                 String absPath = getCachePath(path); // absolute path in the cache
                 
-                FileInstance latestVer = server.getFileVersion(path); // get latest version from server
+                FileInstance latestVer = getLatestVersion(path); // get latest version from server
                 
                 String serverPath = path; // destination file may be nested directories
                 path = getDirName(latestVer.path); // transfer them into a new name in cache
+                absPath = getCachePath(path);
                 
                 // if the file is not permitted by server
                 if (latestVer.fileSize < 0) {
                     return latestVer.fileSize;
                 }
                 
-                // Deal with original copy
-                synchronized (Proxy.class) {
-                    if (fileVersion.containsKey(path)) {
-                        
-                        // if version is not identical, get it from server again
-                        if (fileVersion.get(path) != latestVer.modifiedTime) {
-                            boolean evictRes = evictForFile(latestVer);
-                            if (evictRes == false) {
-                                return Errors.ENOMEM;
-                            }
-                            int ret = getFileFromServer(path, serverPath, o);
-                            if (ret < 0 && ret != -1024)	return ret; // 1024 means a directory being opened
-                            
-                            // if it is a directory, just return a fd to client
-                            if (ret == -1024) {
-                                FileInstance dirFi = new FileInstance(fd, null, null, null, null, null, 0);
-                                dirFi.isDir = true;
-                                fileMap.put(fd, dirFi);
-                                fd++;
-                                return fd - 1;
-                            }
-                            
-                            // update file version
-                            fileVersion.put(path, latestVer.modifiedTime);
-                            
-                            File file = new File(absPath);
-                            int size = (int)file.length();
-                            FileInstance origFi = new FileInstance(-1, path, path, absPath, null, null, size);
-                            
-                            evictFromCache(path2fi.get(path));
-                            pushIntoCache(origFi);
-                            path2fi.put(path, origFi);
-                        } else { // otherwise, just need to update cache
-                            updateCache(path2fi.get(path));
-                        }
-                    } else {  // Else request from the server, as well as create a private copy for this one
-                        boolean evictRes = evictForFile(latestVer);
-                        if (evictRes == false) {
-                            return Errors.ENOMEM;
-                        }
-                        
-                        int ret = getFileFromServer(path, serverPath, o);
-                        if (ret < 0 && ret != -1024)	return ret;
-                        
-                        // if it is a directory, just return a fd to client
-                        if (ret == -1024) {
-                            FileInstance dirFi = new FileInstance(fd, null, null, null, null, null, 0);
-                            dirFi.isDir = true;
-                            fileMap.put(fd, dirFi);
-                            fd++;
-                            return fd - 1;
-                        }
-                        
-                        fileVersion.put(path, latestVer.modifiedTime);
-                        
-                        File file = new File(absPath);
-                        int size = (int)file.length();
-                        FileInstance origFi = new FileInstance(-1, path, path, absPath, null, null, size);
-                        pushIntoCache(origFi);
-                        path2fi.put(path, origFi);
+                if (trace != null) {
+                    trace.record(TraceWriter.OPEN, path, latestVer.fileSize, latestVer.modifiedTime, o.ordinal());
+                }
+                
+                int curFd = nextFd(); // fd of this open session
+                
+                int ret = 0;
+                
+                // Large files opened for reading are not downloaded here,
+                // their blocks are fetched by read as they are needed
+                if (blockSize > 0 && o.name().equalsIgnoreCase("READ")
+                    && latestVer.fileSize > blockSize && !isLatest(path, latestVer)) {
+                    ret = server.openFile(new FilePacket(serverPath, o.name()));
+                    if (ret >= 0) {
+                        return openBlocks(path, serverPath, latestVer, curFd);
                     }
+                    if (ret != -1024)	return ret; // a directory goes the usual way
+                    ret = 0;
+                }
+                
+                if (!o.name().equalsIgnoreCase("CREATE_NEW")) {
+                    cacheStats.record(isLatest(path, latestVer), latestVer.fileSize);
+                }
+                
+                // A miss the admission filter declines is read through a temporary copy,
+                // which leaves the cache on close
+                if (admission != null && o.name().equalsIgnoreCase("READ") && !latestVer.isDir
+                    && !isLatest(path, latestVer) && !admission.admit(path, latestVer.fileSize, getFreeSpace())) {
+                    return openBypass(path, serverPath, o, latestVer, curFd);
                 }
                 
-                // the mode is read and the read copy exists
-                synchronized (Proxy.class) {
+                // Concurrent misses of the same version share one download
+                // CREATE_NEW is never coalesced, exactly one of the racing creators must see EEXIST
+                if (!o.name().equalsIgnoreCase("CREATE_NEW") && !isLatest(path, latestVer)) {
+                    ret = fetchMaster(path, serverPath, o, latestVer, false);
+                }
+                
+                // Only opens of the same file are serialized
+                // Cache accounting is done in its own short critical section
+                pathLocks.lock(path);
+                try {
+                    // Deal with original copy, no server traffic if the flight above refreshed it
+                    if (ret == 0) {
+                        ret = refreshMaster(path, serverPath, o, latestVer, false);
+                    }
+                    if (ret < 0 && ret != -1024)	return ret; // 1024 means a directory being opened
+                    
+                    // if it is a directory, just return a fd to client
+                    if (ret == -1024) {
+                        FileInstance dirFi = new FileInstance(curFd, null, null, null, null, null, 0);
+                        dirFi.isDir = true;
+                        fileMap.put(curFd, dirFi);
+                        return curFd;
+                    }
+                    
+                    // small files are read from the memory tier, no read copy is made for them
+                    if (o.name().equalsIgnoreCase("READ") && memTier != null && memTier.fits(latestVer.fileSize)) {
+                        byte[] data = loadIntoMemory(path, absPath);
+                        if (data != null) {
+                            FileInstance fi = new FileInstance(curFd, path, path, absPath, null, o.name(), data.length);
+                            fi.readOnly = true;
+                            fi.modifiedTime = latestVer.modifiedTime;
+                            fi.buffer = ByteBuffer.wrap(data);
+                            fi.inMemory = true;
+                            fileMap.put(curFd, fi);
+                            return curFd;
+                        }
+                    }
+                    
+                    // the mode is read and the read copy exists
                     // If there already has read copies
                     if (o.name().equalsIgnoreCase("READ") && readCopy.containsKey(path)) {
                         FileInstance readFi = readCopy.get(path).getLast();
@@ -291,7 +531,7 @@ class Proxy {
                             }
                             
                             // Create a new copy for READ options
-                            newPath = createCopy(path); // get the new name of the created copy
+                            newPath = createCopy(path, curFd); // get the new name of the created copy
                             absPath = getCachePath(newPath); // get the absolute cache path of the copy
                             
                             File file = new File(absPath);
@@ -300,45 +540,42 @@ class Proxy {
                             try {
                                 rFile = new RandomAccessFile(file, "rw");
                             }  catch (FileNotFoundException e) {
+                                addCacheSize(-latestVer.fileSize);
                                 if (file.isDirectory()) {
                                     return Errors.EISDIR;
                                 }
                                 return Errors.EEXIST; // If the file is not found, then return EEXIST
                             } catch (SecurityException e) {
+                                addCacheSize(-latestVer.fileSize);
                                 return Errors.EPERM; // If no permission
                             }
                             // A read copy here
-                            FileInstance fi = new FileInstance(fd, newPath, path, absPath, rFile, o.name(), size);
+                            FileInstance fi = new FileInstance(curFd, newPath, path, absPath, rFile, o.name(), size);
                             fi.readOnly = o.name().equalsIgnoreCase("READ");
                             fi.modifiedTime = latestVer.modifiedTime;
-                            // update cache size of the read copy without putting it into LRU
-                            synchronized (Proxy.class) {
-                                cacheSize += fi.fileSize;
+                            int mapRet = mapCopy(fi);
+                            if (mapRet < 0) {
+                                file.delete();
+                                addCacheSize(-latestVer.fileSize);
+                                return mapRet;
                             }
+                            // update cache size of the read copy without putting it into LRU,
+                            // the reservation becomes its real size
+                            addCacheSize(fi.fileSize - latestVer.fileSize);
                             fi.readerCnt = 1;
-                            fileMap.put(fd, fi);
+                            fileMap.put(curFd, fi);
                             readCopy.get(path).add(fi);
-                            fd2Copy.put(fd, fi);
+                            fd2Copy.put(curFd, fi);
                         } else { // if read copy still new
                             readFi.readerCnt++;
-                            File file = new File(readFi.absPath);
-                            RandomAccessFile rFile = null;
-                            try {
-                                rFile = new RandomAccessFile(file, "rw");
-                            }  catch (FileNotFoundException e) {
-                                if (file.isDirectory()) {
-                                    return Errors.EISDIR;
-                                }
-                                return Errors.EEXIST; // If the file is not found, then return EEXIST
-                            } catch (SecurityException e) {
-                                return Errors.EPERM; // If no permission
-                            }
                             newPath = readFi.path;
                             absPath = getCachePath(newPath);
-                            FileInstance fi = new FileInstance(fd, newPath, path, absPath, rFile, o.name(), readFi.fileSize);
+                            // the fd only keeps a position, reads are served from the shared mapping
+                            FileInstance fi = new FileInstance(curFd, newPath, path, absPath, null, o.name(), readFi.fileSize);
                             fi.readOnly = o.name().equalsIgnoreCase("READ");
-                            fileMap.put(fd, fi);
-                            fd2Copy.put(fd, readFi);
+                            fi.buffer = readFi.buffer;
+                            fileMap.put(curFd, fi);
+                            fd2Copy.put(curFd, readFi);
                         }
                     } else {
                         
@@ -349,53 +586,642 @@ class Proxy {
                         }
                         
                         // Create a new copy for non-READ options
-                        newPath = createCopy(path); // get the new name of the created copy
+                        newPath = createCopy(path, curFd); // get the new name of the created copy
                         absPath = getCachePath(newPath); // get the absolute cache path of the copy
                         
                         File file = new File(absPath);
                         int size = (int)file.length();
                         RandomAccessFile rFile = null;
                         try {
-                            rFile = new RandomAccessFile(file, "rw");
-                        } catch (FileNotFoundException e) {
-                            if (file.isDirectory()) {
-                                return Errors.EISDIR;
-                            }
-                            return Errors.EEXIST; // If the file is not found, then return EEXIST
-                        } catch (SecurityException e) {
-                            return Errors.EPERM; // If no permission
-                        }
-                        FileInstance fi = new FileInstance(fd, newPath, path, absPath, rFile, o.name(), size);
-                        fi.readOnly = o.name().equalsIgnoreCase("READ");
-                        fi.modifiedTime = latestVer.modifiedTime;
-                        
-                        // update cache size without putting it into LRU
-                        synchronized (Proxy.class) {
-                            cacheSize += fi.fileSize;
-                        }
-                        
-                        fileMap.put(fd, fi);
-                        if (fi.readOnly) {
-                            fi.readerCnt = 1;
-                            readCopy.put(path, new LinkedList<FileInstance>());
-                            readCopy.get(path).add(fi);
-                            fd2Copy.put(fd, fi);
+                            rFile = new RandomAccessFile(file, "rw");
+                        } catch (FileNotFoundException e) {
+                            addCacheSize(-latestVer.fileSize);
+                            if (file.isDirectory()) {
+                                return Errors.EISDIR;
+                            }
+                            return Errors.EEXIST; // If the file is not found, then return EEXIST
+                        } catch (SecurityException e) {
+                            addCacheSize(-latestVer.fileSize);
+                            return Errors.EPERM; // If no permission
+                        }
+                        FileInstance fi = new FileInstance(curFd, newPath, path, absPath, rFile, o.name(), size);
+                        fi.readOnly = o.name().equalsIgnoreCase("READ");
+                        fi.modifiedTime = latestVer.modifiedTime;
+                        if (!fi.readOnly) {
+                            fi.dirty = new DirtyRanges(); // only what is written gets pushed back on close
+                        }
+                        
+                        // map a read copy before the fd exists, so a failure leaves nothing behind
+                        if (fi.readOnly) {
+                            int mapRet = mapCopy(fi);
+                            if (mapRet < 0) {
+                                file.delete();
+                                addCacheSize(-latestVer.fileSize);
+                                return mapRet;
+                            }
+                        }
+                        
+                        // update cache size without putting it into LRU, the reservation becomes its real size
+                        addCacheSize(fi.fileSize - latestVer.fileSize);
+                        
+                        fileMap.put(curFd, fi);
+                        if (fi.readOnly) {
+                            fi.readerCnt = 1;
+                            readCopy.put(path, new LinkedList<FileInstance>());
+                            readCopy.get(path).add(fi);
+                            fd2Copy.put(curFd, fi);
+                        }
+                    }
+                } finally {
+                    pathLocks.unlock(path);
+                }
+                
+                // After file is written or copied to the cache
+                return curFd;
+            }
+            catch(RemoteException e) {
+                System.err.println(e); //probably want to do some better logging here.
+            }
+            return Errors.EINVAL;
+        }
+        
+        
+        /*
+         * Get the contents of the latest master copy of a small file from the memory tier,
+         * loading them from the cache directory on a miss
+         * The held bytes count against cacheLim like the files on disk
+         * Caller must hold the path lock
+         * @return: the contents, null if they can't be held
+         */
+        private byte[] loadIntoMemory(String path, String absPath) {
+            Long version = fileVersion.get(path);
+            if (version == null) {
+                return null; // the master copy is gone
+            }
+            byte[] data = memTier.get(path, version);
+            if (data != null) {
+                return data;
+            }
+            File file = new File(absPath);
+            if (!memTier.fits((int)file.length())) {
+                return null;
+            }
+            try (RandomAccessFile rFile = new RandomAccessFile(file, "r")) {
+                data = new byte[(int)rFile.length()];
+                rFile.readFully(data);
+            } catch (IOException e) {
+                return null;
+            }
+            synchronized (cacheLock) {
+                if (!evictForFileLocked(new FileInstance(data.length, version))) {
+                    return null; // no room
+                }
+                if (!policy.contains(path2fi.get(path))) {
+                    cacheSize -= data.length;
+                    return null; // the master copy itself had to go
+                }
+                cacheSize -= memTier.put(path, version, data);
+            }
+            return data;
+        }
+        
+        // Drop a file from the memory tier, e.g. when its master copy is replaced
+        private void dropFromMemory(String path) {
+            if (memTier != null) {
+                synchronized (cacheLock) {
+                    cacheSize -= memTier.remove(path);
+                }
+            }
+        }
+        
+        /*
+         * Load a file into the cache for the preloader, never evicting anything for it
+         * @return: its size, 0 if it is cached already, errno (negative) if it failed or was skipped
+         */
+        int preload(String serverPath) {
+            try {
+                FileInstance latestVer = getLatestVersion(serverPath);
+                if (latestVer.fileSize < 0) {
+                    return latestVer.fileSize;
+                }
+                if (latestVer.isDir) {
+                    return Errors.EISDIR;
+                }
+                String path = getDirName(latestVer.path);
+                if (isLatest(path, latestVer)) {
+                    return 0;
+                }
+                // only free space is taken, the cache is full otherwise and clients decide what stays
+                if (!reserveFree(latestVer.fileSize)) {
+                    return Errors.ENOMEM;
+                }
+                int ret = fetchMaster(path, serverPath, OpenOption.READ, latestVer, true);
+                return ret < 0 ? ret : latestVer.fileSize;
+            } catch (RemoteException e) {
+                e.printStackTrace();
+                return Errors.EINVAL;
+            }
+        }
+        
+        /*
+         * Open a file for reading through a temporary copy, without caching it
+         * The copy only takes free space, it never evicts an admitted entry; it counts
+         * against cacheLim while it is open
+         * If it doesn't fit, the fd reads straight from server in chunks instead
+         * @return: the fd, errno (negative) if failed
+         */
+        private int openBypass(String path, String serverPath, OpenOption o, FileInstance latestVer, int curFd) {
+            EventLog.debug("admission declined", path, curFd, latestVer.fileSize);
+            if (!reserveFree(latestVer.fileSize)) {
+                return openReadThrough(path, serverPath, latestVer, curFd);
+            }
+            String newPath = getNewName(path, curFd);
+            String absPath = getCachePath(newPath);
+            int ret = getFileFromServer(newPath, serverPath, o);
+            File file = new File(absPath);
+            if (ret < 0) {
+                file.delete();
+                addCacheSize(-latestVer.fileSize);
+                return ret;
+            }
+            
+            int size = (int)file.length();
+            addCacheSize(size - latestVer.fileSize); // changed on server since, keep what is on disk
+            
+            RandomAccessFile rFile = null;
+            try {
+                rFile = new RandomAccessFile(file, "r");
+            } catch (FileNotFoundException e) {
+                addCacheSize(-size);
+                return Errors.ENOENT;
+            }
+            FileInstance fi = new FileInstance(curFd, newPath, path, absPath, rFile, o.name(), size);
+            fi.readOnly = true;
+            fi.bypass = true;
+            int mapRet = mapCopy(fi);
+            if (mapRet < 0) {
+                file.delete();
+                addCacheSize(-size);
+                return mapRet;
+            }
+            fileMap.put(curFd, fi);
+            return curFd;
+        }
+        
+        // Reserve bytes of cacheLim not used yet, without evicting anything
+        private boolean reserveFree(int size) {
+            synchronized (cacheLock) {
+                if (cacheSize + size > Proxy.cacheLim) {
+                    return false;
+                }
+                cacheSize += size;
+                return true;
+            }
+        }
+        
+        /*
+         * Open a file for reading straight from server, nothing of it is kept in the cache
+         * Reads are chunks of the version seen at open, they fail with EBUSY once it changes
+         * @return: the fd
+         */
+        private int openReadThrough(String path, String serverPath, FileInstance latestVer, int curFd) {
+            FileInstance fi = new FileInstance(curFd, path, path, null, null, "READ", latestVer.fileSize);
+            fi.readOnly = true;
+            fi.modifiedTime = latestVer.modifiedTime;
+            fi.readThrough = serverPath;
+            metrics.counter("admission.readThrough").increment();
+            fileMap.put(curFd, fi);
+            return curFd;
+        }
+        
+        /*
+         * Read from a fd opened by openReadThrough at its position
+         * @return: the number of bytes read, errno (negative) if failed
+         */
+        private long readThrough(FileInstance fi, byte[] buf) {
+            int total = (int)Math.max(Math.min(buf.length, fi.fileSize - fi.position), 0);
+            int done = 0;
+            try {
+                while (done < total) {
+                    int size = Math.min(total - done, getChunkMax());
+                    Chunk chunk = pipeline.read(server, fi.readThrough, (int)fi.position + done, size,
+                                                fi.modifiedTime, null);
+                    if (chunk.size < 0) {
+                        return chunk.size;
+                    }
+                    int len = Math.min(chunk.content.length, size);
+                    if (len == 0) {
+                        break; // file got shorter on server in the mean time
+                    }
+                    System.arraycopy(chunk.content, 0, buf, done, len);
+                    done += len;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return Errors.EINVAL;
+            }
+            fi.position += done;
+            return done;
+        }
+        
+        /*
+         * Largest chunk size agreed with server, negotiated on first use
+         * A failed negotiation falls back to the default size for this call only and is retried
+         */
+        private int getChunkMax() {
+            int max = negotiatedChunkSize;
+            if (max > 0) {
+                return max;
+            }
+            try {
+                max = server.negotiateChunkSize(maxChunkSize);
+                negotiatedChunkSize = max;
+                return max;
+            } catch (RemoteException e) {
+                EventLog.warn("chunk size not negotiated", null, -1, Server.chunkSize);
+                return Math.min(Server.chunkSize, maxChunkSize);
+            }
+        }
+        
+        // A chunk sizer of its own for one transfer, so concurrent transfers don't steer each other
+        private ChunkSizer newSizer() {
+            return new ChunkSizer(minChunkSize, getChunkMax(), Server.chunkSize);
+        }
+        
+        // Bytes of cacheLim not used yet
+        private long getFreeSpace() {
+            synchronized (cacheLock) {
+                return Proxy.cacheLim - cacheSize;
+            }
+        }
+        
+        /*
+         * Map a new shared read copy into memory, so that its readers need no syscalls
+         * The file opened for the fd is closed, the mapping stays valid without it;
+         * it is closed on failure too, the caller only removes the copy
+         * @return: 0 if succeed, errno (negative) if failed
+         */
+        private int mapCopy(FileInstance fi) {
+            try {
+                fi.buffer = fi.raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fi.fileSize);
+                fi.raf.close();
+                fi.raf = null;
+                return 0;
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    fi.raf.close(); // a second close is harmless
+                } catch (IOException ce) {
+                    ce.printStackTrace();
+                }
+                fi.raf = null;
+                return Errors.ENOMEM;
+            }
+        }
+        
+        /*
+         * Open a file cached in blocks for reading, no block is fetched here
+         * @return: the fd
+         */
+        private int openBlocks(String path, String serverPath, FileInstance latestVer, int curFd) {
+            pathLocks.lock(path);
+            try {
+                BlockMap bm = path2blocks.get(path);
+                if (bm == null || bm.version != latestVer.modifiedTime) {
+                    if (bm != null && bm.openCnt == 0) {
+                        dropBlocks(bm); // blocks of an old version nobody reads any more
+                    }
+                    bm = new BlockMap(path, serverPath, latestVer.modifiedTime, latestVer.fileSize,
+                                      Math.min(blockSize, getChunkMax()));
+                    path2blocks.put(path, bm);
+                }
+                bm.openCnt++;
+                
+                FileInstance fi = new FileInstance(curFd, path, path, null, null, "READ", bm.fileSize);
+                fi.readOnly = true;
+                fi.modifiedTime = latestVer.modifiedTime;
+                fi.blocks = bm;
+                fileMap.put(curFd, fi);
+                return curFd;
+            } finally {
+                pathLocks.unlock(path);
+            }
+        }
+        
+        // Close a fd reading in blocks, caller must hold the path lock
+        private void closeBlocks(FileInstance fi) {
+            BlockMap bm = fi.blocks;
+            bm.openCnt--;
+            if (bm.openCnt == 0 && path2blocks.get(bm.path) != bm) {
+                dropBlocks(bm); // a newer version took its place, or the file is unlinked
+            }
+        }
+        
+        // Remove all blocks of a block map from the cache, caller must hold the path lock
+        private void dropBlocks(BlockMap bm) {
+            bm.dropped = true;
+            for (FileInstance entry : bm.getEntries()) {
+                evictFromCache(entry);
+                new File(entry.absPath).delete();
+            }
+        }
+        
+        /*
+         * Read from a file cached in blocks, fetching the missing blocks from server
+         * @return: the number of bytes read, errno (negative) if failed
+         */
+        private long readBlocks(FileInstance fi, byte[] buf) {
+            BlockMap bm = fi.blocks;
+            long start = fi.position;
+            int total = (int)Math.max(Math.min(buf.length, bm.fileSize - fi.position), 0);
+            int done = 0;
+            while (done < total) {
+                long pos = fi.position + done;
+                int idx = (int)(pos / bm.blockSize);
+                int inBlock = (int)(pos % bm.blockSize);
+                int len = Math.min(total - done, bm.getBlockLength(idx) - inBlock);
+                int ret = readBlock(bm, idx, inBlock, buf, done, len);
+                if (ret < 0) {
+                    return ret;
+                }
+                done += len;
+            }
+            fi.position += done;
+            
+            // keep the blocks ahead of a sequential reader coming in the background
+            if (readAhead != null) {
+                int ahead = readAhead.advance(fi, start, fi.position);
+                if (ahead > 0) {
+                    prefetchBlocks(bm, fi.position, ahead);
+                }
+            }
+            return done;
+        }
+        
+        // Prefetch count blocks from the one holding pos on, skipping those in the cache
+        private void prefetchBlocks(final BlockMap bm, long pos, int count) {
+            int first = (int)(pos / bm.blockSize);
+            int last = Math.min(first + count, bm.getBlockCount());
+            for (int i = first; i < last; i++) {
+                final int idx = i;
+                if (bm.isPresent(idx)) {
+                    continue;
+                }
+                readAhead.submit(bm.getBlockName(idx), new Runnable() {
+                    public void run() {
+                        String name = bm.getBlockName(idx);
+                        pathLocks.lock(name);
+                        try {
+                            if (!bm.dropped && !bm.isPresent(idx)) {
+                                fetchBlock(bm, idx);
+                            }
+                        } finally {
+                            pathLocks.unlock(name);
+                        }
+                    }
+                });
+            }
+        }
+        
+        /*
+         * Read len bytes from offset inBlock of a block into buf,
+         * the block is fetched and put into the cache if it is missing
+         * @return: len if succeed, errno (negative) if failed
+         */
+        private int readBlock(BlockMap bm, int idx, int inBlock, byte[] buf, int off, int len) {
+            String name = bm.getBlockName(idx);
+            String absPath = getCachePath(name);
+            pathLocks.lock(name);
+            try {
+                if (bm.isPresent(idx)) {
+                    try (RandomAccessFile rFile = new RandomAccessFile(absPath, "r")) {
+                        rFile.seek(inBlock);
+                        rFile.readFully(buf, off, len);
+                        updateCache(bm.getEntry(idx));
+                        return len;
+                    } catch (IOException e) {
+                        bm.clear(idx); // evicted in the mean time, fetch it again
+                    }
+                }
+                
+                Chunk chunk = fetchBlock(bm, idx);
+                if (chunk.size < 0) {
+                    return chunk.size;
+                }
+                System.arraycopy(chunk.content, inBlock, buf, off, len);
+                return len;
+            } finally {
+                pathLocks.unlock(name);
+            }
+        }
+        
+        /*
+         * Fetch a block from server and put it into the cache
+         * Caller must hold the lock of the block name
+         * @return: the chunk of the block, its size is errno (negative) if failed
+         */
+        private Chunk fetchBlock(BlockMap bm, int idx) {
+            String name = bm.getBlockName(idx);
+            String absPath = getCachePath(name);
+            Chunk chunk = new Chunk(0);
+            int reserved = 0;
+            try {
+                FileInstance entry = new FileInstance(-1, name, bm.path, absPath, null, null, bm.getBlockLength(idx));
+                entry.blocks = bm;
+                entry.blockIdx = idx;
+                if (!evictForFile(entry)) {
+                    chunk.size = Errors.ENOMEM;
+                    return chunk;
+                }
+                reserved = entry.fileSize;
+                chunk = pipeline.read(server, bm.serverPath, idx * bm.blockSize, entry.fileSize, bm.version, null);
+                if (chunk.size == Errors.EBUSY) {
+                    // the file changed on server, this version can't be completed, so its
+                    // readers fail and the next open starts a block map of the new version
+                    path2blocks.remove(bm.path, bm);
+                    metrics.counter("blocks.stale").increment();
+                    return chunk;
+                }
+                if (chunk.size < 0) {
+                    return chunk;
+                }
+                if (chunk.content.length < entry.fileSize) {
+                    chunk.size = Errors.EINVAL; // file got shorter on server in the mean time
+                    return chunk;
+                }
+                try (FileOutputStream out = new FileOutputStream(absPath)) {
+                    out.write(chunk.content, 0, entry.fileSize);
+                }
+                pushReserved(entry, reserved);
+                reserved = 0;
+                bm.set(idx, entry);
+            } catch (IOException e) {
+                e.printStackTrace();
+                chunk.size = Errors.EINVAL;
+            } finally {
+                addCacheSize(-reserved); // given back if the block did not make it
+            }
+            return chunk;
+        }
+        
+        /*
+         * Get the latest version of a file
+         * In lease mode, a version under a valid read lease is used without asking server
+         * @return: file instance which contains timestamp info
+         */
+        private FileInstance getLatestVersion(String path) throws RemoteException {
+            if (leases == null) {
+                long start = System.nanoTime();
+                FileInstance ver = server.getFileVersion(path);
+                metrics.histogram("rmi.getFileVersion").record(System.nanoTime() - start);
+                return ver;
+            }
+            FileInstance ver = leases.get(path);
+            if (ver != null) {
+                return ver;
+            }
+            long requestTime = System.currentTimeMillis();
+            long requestEpoch = leases.getEpoch();
+            ver = server.getFileVersionLeased(path, leases);
+            leases.put(path, ver, requestTime, requestEpoch);
+            return ver;
+        }
+        
+        // Check whether the master copy of a file in the cache is the latest version
+        private boolean isLatest(String path, FileInstance latestVer) {
+            Long ver = fileVersion.get(path);
+            return ver != null && ver == latestVer.modifiedTime;
+        }
+        
+        /*
+         * Refresh the master copy through the single-flight layer
+         * The first miss of a version downloads it, later callers wait for the same result
+         * A reservation the caller made is released if the flight of another caller did the work
+         * @return: same as refreshMaster
+         */
+        private int fetchMaster(final String path, final String serverPath,
+                                final OpenOption o, final FileInstance latestVer, final boolean reserved) {
+            String key = path + "@" + latestVer.modifiedTime + ":" + o.name();
+            final AtomicBoolean ran = new AtomicBoolean(false);
+            try {
+                int ret = fetches.run(key, new Callable<Integer>() {
+                    public Integer call() {
+                        ran.set(true);
+                        pathLocks.lock(path);
+                        try {
+                            return refreshMaster(path, serverPath, o, latestVer, reserved);
+                        } finally {
+                            pathLocks.unlock(path);
                         }
                     }
+                });
+                EventLog.debug("fetch", path, -1, ret);
+                return ret;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return Errors.EBUSY;
+            } finally {
+                if (reserved && !ran.get()) {
+                    addCacheSize(-latestVer.fileSize);
+                }
+            }
+        }
+        
+        /*
+         * Make sure the master copy of a file in the cache is the latest version,
+         * get it from the server if it is missing or out-dated
+         * Caller must hold the path lock
+         * If reserved, the caller already holds latestVer.fileSize of the cache, nothing is evicted
+         * and the reservation is taken over, or released when it is not used
+         * @return: 0 if succeed, -1024 if it is a directory, errno (negative) if failed
+         */
+        private int refreshMaster(String path, String serverPath, OpenOption o, FileInstance latestVer,
+                                  boolean reserved) {
+            String absPath = getCachePath(path);
+            
+            if (fileVersion.containsKey(path)) {
+                
+                // if version is not identical, get the difference from server
+                if (fileVersion.get(path) != latestVer.modifiedTime) {
+                    dropFromMemory(path);
+                    // the stale copy is the base of the delta, so keep it as the last one to evict
+                    updateCache(path2fi.get(path));
+                    if (!reserved && !evictForFile(latestVer)) {
+                        return Errors.ENOMEM;
+                    }
+                    int ret = getDeltaFromServer(path, serverPath, o);
+                    if (ret < 0) {
+                        addCacheSize(-latestVer.fileSize);
+                        return ret;
+                    }
+                    
+                    // update file version
+                    fileVersion.put(path, latestVer.modifiedTime);
+                    
+                    File file = new File(absPath);
+                    int size = (int)file.length();
+                    FileInstance origFi = new FileInstance(-1, path, path, absPath, null, null, size);
+                    
+                    evictFromCache(path2fi.get(path));
+                    pushReserved(origFi, latestVer.fileSize);
+                    path2fi.put(path, origFi);
+                } else { // otherwise, just need to update cache
+                    updateCache(path2fi.get(path));
+                    if (reserved) {
+                        addCacheSize(-latestVer.fileSize);
+                    }
+                }
+            } else {  // Else request from the server
+                if (!reserved && !evictForFile(latestVer)) {
+                    return Errors.ENOMEM;
                 }
                 
-                // After file is written or copied to the cache
-                fd++;
-                return fd - 1;
+                int ret = getFileFromServer(path, serverPath, o);
+                if (ret < 0) {
+                    addCacheSize(-latestVer.fileSize);
+                    return ret;
+                }
+                
+                fileVersion.put(path, latestVer.modifiedTime);
+                
+                File file = new File(absPath);
+                int size = (int)file.length();
+                FileInstance origFi = new FileInstance(-1, path, path, absPath, null, null, size);
+                pushReserved(origFi, latestVer.fileSize);
+                path2fi.put(path, origFi);
             }
-            catch(RemoteException e) {
-                System.err.println(e); //probably want to do some better logging here.
+            return 0;
+        }
+        
+        public int close( int fd ) {
+            long start = System.nanoTime();
+            FileInstance fi = trace == null && !EventLog.enabled(EventLog.DEBUG) ? null : fileMap.get(fd);
+            int ret = doClose(fd);
+            metrics.histogram("close").record(System.nanoTime() - start);
+            if (EventLog.enabled(EventLog.DEBUG)) {
+                EventLog.debug("close", fi == null ? null : fi.origPath, fd, ret);
             }
-            return fd - 1;
+            if (trace != null && fi != null && fi.origPath != null && ret == 0) {
+                traceEvent(TraceWriter.CLOSE, fi.origPath, fi.openOption);
+            }
+            return ret;
+        }
+        
+        // Path a fd was opened with, for the event log
+        private String pathOf(int fd) {
+            FileInstance fi = fileMap.get(fd);
+            return fi == null ? null : fi.origPath;
         }
         
+        // Record an event in the trace with the master copy of the file as it is now
+        private void traceEvent(byte kind, String path, String openOption) {
+            FileInstance master = path2fi.get(path);
+            Long version = fileVersion.get(path);
+            int mode = openOption == null ? -1 : OpenOption.valueOf(openOption).ordinal();
+            trace.record(kind, path, master == null ? -1 : master.fileSize, version == null ? 0 : version, mode);
+        }
         
-        public int close( int fd ) {
+        private int doClose( int fd ) {
             
             /*
              * When close a fd, push all write updates to server
@@ -407,44 +1233,53 @@ class Proxy {
             
             RandomAccessFile rFile = fileMap.get(fd).raf;
             
+            // write-back and read copy bookkeeping are serialized with opens of the same file
+            String lockPath = fileMap.get(fd).origPath;
+            if (lockPath != null) {
+                pathLocks.lock(lockPath);
+            }
             try {
-                if (rFile != null) {
+                if (fileMap.get(fd).blocks != null) {
+                    closeBlocks(fileMap.get(fd));
+                }
+                if (fileMap.get(fd).inMemory) {
+                    touchCache(path2fi.get(lockPath));
+                    fileMap.remove(fd);
+                    return 0;
+                }
+                if (fileMap.get(fd).readThrough != null) {
+                    fileMap.remove(fd); // nothing of it is in the cache
+                    return 0;
+                }
+                if (fileMap.get(fd).bypass) {
+                    FileInstance bypassFi = fileMap.remove(fd);
+                    bypassFi.buffer = null;
+                    new File(bypassFi.absPath).delete();
+                    addCacheSize(-bypassFi.fileSize);
+                    return 0;
+                }
+                if (rFile != null || fileMap.get(fd).buffer != null) {
                     // If file is not read only, push updates to server
                     // as well as overwrite the original copy in the cache
-                    if (!fileMap.get(fd).readOnly) {
+                    int fileLen = (int)((new File(fileMap.get(fd).absPath)).length());
+                    FileInstance closeFi = fileMap.get(fd);
+                    
+                    if (!closeFi.readOnly && closeFi.dirty.isEmpty() && fileLen == closeFi.fileSize) {
+                        // nothing written, so no upload and no version refresh
+                        // just drop the private copy
+                        rFile.close();
+                        new File(closeFi.absPath).delete();
+                        addCacheSize(-fileLen);
+                    } else if (!closeFi.readOnly) {
                         
                         // write to server
-                        int fileLen = (int)((new File(fileMap.get(fd).absPath)).length());
-                        
-                        int offset = 0;
-                        InputStream input = null;
-                        input = new FileInputStream(fileMap.get(fd).absPath);
-                        while (true) {
-                            int byteToWrite = fileLen - offset;
-                            if (byteToWrite > Server.chunkSize)	byteToWrite = Server.chunkSize;
-                            
-                            FilePacket fp = new FilePacket(byteToWrite);
-                            
-                            try {
-                                input.read(fp.content, 0, byteToWrite);
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                            fp.offset = offset;
-                            int writeLen = server.writeFile(fileMap.get(fd).origPath, fp);
-                            offset += writeLen;
-                            if (offset >= fileLen)		break;
-                        }
-                        try {
-                            input.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
+                        int ret = writeBack(closeFi, fileLen);
+                        if (ret < 0) {
+                            return ret;
                         }
                         
                         // substract the size from cache
-                        synchronized (Proxy.class) {
-                            cacheSize -= fileLen;
-                        }
+                        addCacheSize(-fileLen);
                         
                         //TODO need to test here to see whether need to delete old file
                         // delete old file
@@ -471,49 +1306,49 @@ class Proxy {
                         
                         // update node size of the original file
                         int newPathSize = fileLen;
-                        path2fi.get(fileMap.get(fd).origPath).fileSize = newPathSize;
+                        resizeInCache(path2fi.get(fileMap.get(fd).origPath), newPathSize);
                         // update cache size
-                        synchronized (Proxy.class) {
-                            cacheSize = cacheSize - origPathSize + newPathSize;
-                            fileVersion.put(fileMap.get(fd).origPath,
-                                            server.getFileVersion(fileMap.get(fd).origPath).modifiedTime);
+                        long newVersion = server.getFileVersion(fileMap.get(fd).origPath).modifiedTime;
+                        addCacheSize(newPathSize - origPathSize);
+                        fileVersion.put(fileMap.get(fd).origPath, newVersion);
+                        if (cacheIndex != null) {
+                            cacheIndex.put(fileMap.get(fd).origPath, newVersion, newPathSize);
                         }
+                        dropFromMemory(fileMap.get(fd).origPath);
                         
                         // If there is no entry of this file in the cache, then push it into cache
-                        int idx = lruQueue.indexOf(path2fi.get(fileMap.get(fd).origPath));
-                        if (idx < 0) {
-                            path2fi.get(fileMap.get(fd).origPath).fileSize = newPathSize;
+                        if (!policy.contains(path2fi.get(fileMap.get(fd).origPath))) {
                             boolean evictRes = evictForFile(path2fi.get(fileMap.get(fd).origPath));
                             if (evictRes == false) {
                                 return Errors.ENOMEM;
                             }
-                            pushIntoCache(path2fi.get(fileMap.get(fd).origPath));
-                            // Because we have calculated before, so need to subtract it to offset pushIntoCache
-                            cacheSize -= newPathSize;
+                            pushReserved(path2fi.get(fileMap.get(fd).origPath), newPathSize);
+                            // Because we have calculated before, so need to subtract it to offset the reservation
+                            addCacheSize(-newPathSize);
                         }
                         
                         //}
                     } else { // if read-only, then need to check the read count
-                        FileInstance closeFi = fileMap.get(fd);
                         FileInstance curCopy = fd2Copy.get(fd);
                         curCopy.readerCnt--;
                         String absPath = closeFi.absPath;
                         File oldFile = new File(absPath);
                         
                         if (curCopy.readerCnt == 0) { // if the reader cnt equals 0, then delete the read copy
-                            System.err.println("readcnt == 0 " + fileMap.get(fd).origPath);
+                            EventLog.debug("read copy dropped", fileMap.get(fd).origPath, fd, fileMap.get(fd).fileSize);
                             // delete public read copy if outdated
                             oldFile.delete();
+                            curCopy.buffer = null; // unmapped once the readers drop it too
                             // substract the size from cache
-                            synchronized (Proxy.class) {
-                                cacheSize -= fileMap.get(fd).fileSize;
-                            }
+                            addCacheSize(-fileMap.get(fd).fileSize);
                         }
                         fd2Copy.remove(fd);
                     }
                     
-                    rFile.close();
-                    updateCache(path2fi.get(fileMap.get(fd).origPath));
+                    if (rFile != null) {
+                        rFile.close();
+                    }
+                    touchCache(path2fi.get(fileMap.get(fd).origPath));
                     
                 }
                 fileMap.remove(fd);
@@ -521,12 +1356,75 @@ class Proxy {
                 return 0;
             } catch(IOException e) {
                 return Errors.EBADF;
+            } finally {
+                if (lockPath != null) {
+                    pathLocks.unlock(lockPath);
+                }
             }
         }
         
-        public long write( int fd, byte[] buf ) {
-            System.err.println("In write with fd: " + fd);
+        /*
+         * Push the changes of a private copy to server
+         * Only dirty ranges are sent, plus the extension or truncation of the file
+         * If the file changed on server since it was opened, the ranges would splice two versions,
+         * so the whole private copy is sent instead and the last writer wins
+         * @return: 0 if succeed, errno (negative) if failed
+         */
+        private int writeBack(FileInstance fi, int fileLen) throws IOException {
+            DirtyRanges ranges = fi.dirty;
+            boolean whole = getLatestVersion(fi.origPath).modifiedTime != fi.modifiedTime;
+            if (whole) {
+                ranges = new DirtyRanges();
+                ranges.add(0, fileLen);
+                metrics.counter("writeBack.whole").increment();
+            } else if (fileLen > fi.fileSize) {
+                ranges.add(fi.fileSize, fileLen); // extension, including holes left by lseek
+            }
+            
+            RandomAccessFile rFile = fi.raf;
+            ChunkSizer sizer = newSizer();
+            for (Map.Entry<Long, Long> range : ranges.getRanges().entrySet()) {
+                long offset = range.getKey();
+                long end = Math.min(range.getValue(), fileLen);
+                if (streaming && offset < end) {
+                    int ret = streamToServer(fi, offset, end);
+                    if (ret != Errors.ENOSYS) {
+                        if (ret < 0)	return ret;
+                        continue;
+                    }
+                }
+                if (offset < end) {
+                    int ret = pipeline.upload(server, fi.origPath, rFile.getChannel(), offset, end, sizer);
+                    if (ret < 0) {
+                        return ret;
+                    }
+                }
+            }
             
+            // the private copy is shorter than the server file, so truncate it there
+            if (fileLen < fi.fileSize || whole) {
+                FilePacket fp = new FilePacket(0);
+                fp.offset = fileLen;
+                fp.length = fileLen;
+                int ret = server.writeFile(fi.origPath, fp);
+                if (ret < 0) {
+                    return ret;
+                }
+            }
+            return 0;
+        }
+        
+        public long write( int fd, byte[] buf ) {
+            long start = System.nanoTime();
+            long ret = doWrite(fd, buf);
+            metrics.histogram("write").record(System.nanoTime() - start);
+            if (EventLog.enabled(EventLog.DEBUG)) {
+                EventLog.debug("write", pathOf(fd), fd, ret);
+            }
+            return ret;
+        }
+        
+        private long doWrite( int fd, byte[] buf ) {
             /*
              * When write to a fd, write to the copy it owns
              * Write updates are pushed to server when open-close session ends
@@ -538,6 +1436,9 @@ class Proxy {
             if (fileMap.get(fd) == null) {
                 return Errors.EBADF;  // If fd is invalid, then return EBADF
             }
+            if (fileMap.get(fd).blocks != null || fileMap.get(fd).readThrough != null) {
+                return Errors.EBADF; // only files opened for reading are cached in blocks or read through
+            }
             File file = new File(fileMap.get(fd).absPath);
             if (fileMap.get(fd).isDir) {
                 return Errors.EISDIR; // If it is a directory, then return EISDIR
@@ -552,7 +1453,9 @@ class Proxy {
             int byteWrite = buf.length;
             if (rFile != null) {
                 try {
+                    long pos = rFile.getFilePointer();
                     rFile.write(buf);
+                    fileMap.get(fd).dirty.add(pos, pos + byteWrite); // record the range for write-back
                 } catch (IOException e) {
                     return Errors.EINVAL;
                 }
@@ -566,8 +1469,16 @@ class Proxy {
          * @Return: the number of bytes in the buf
          */
         public long read( int fd, byte[] buf ) {
-            System.err.println("In read with fd: " + fd);
-            
+            long start = System.nanoTime();
+            long ret = doRead(fd, buf);
+            metrics.histogram("read").record(System.nanoTime() - start);
+            if (EventLog.enabled(EventLog.DEBUG)) {
+                EventLog.debug("read", pathOf(fd), fd, ret);
+            }
+            return ret;
+        }
+        
+        private long doRead( int fd, byte[] buf ) {
             /*
              * When read to a fd, read to the copy it owns
              */
@@ -578,8 +1489,16 @@ class Proxy {
             if (fileMap.get(fd) == null) { // if file descriptor > 0, but don't exist, then return EBADF
                 return Errors.EBADF;
             }
+            if (fileMap.get(fd).blocks != null) {
+                return readBlocks(fileMap.get(fd), buf);
+            }
+            if (fileMap.get(fd).readThrough != null) {
+                return readThrough(fileMap.get(fd), buf);
+            }
+            if (fileMap.get(fd).buffer != null) {
+                return readBuffer(fileMap.get(fd), buf);
+            }
             File file = new File(fileMap.get(fd).absPath);
-            System.err.println(fileMap.get(fd).absPath);
             if (fileMap.get(fd).isDir) {
                 return Errors.EISDIR;  // If it is a directory, then return EISDIR
             }
@@ -594,7 +1513,7 @@ class Proxy {
                 byteRead = rFile.read(buf);
                 if (byteRead == -1)	byteRead = 0;
             } catch (IOException e) {
-                System.err.println("Read ENOMEM");
+                EventLog.error("read failed", fileMap.get(fd).origPath, fd, Errors.ENOMEM);
                 return Errors.ENOMEM;
             } catch (NullPointerException e) {
                 return Errors.EINVAL;
@@ -602,9 +1521,29 @@ class Proxy {
             return byteRead;
         }
         
+        // Read from the shared contents of a read copy at the position of the fd
+        private long readBuffer(FileInstance fi, byte[] buf) {
+            ByteBuffer contents = fi.buffer;
+            if (fi.position >= contents.limit()) {
+                return 0; // at or past the end, e.g. after an lseek beyond it
+            }
+            int byteRead = (int)Math.min(buf.length, contents.limit() - fi.position);
+            contents.get((int)fi.position, buf, 0, byteRead);
+            fi.position += byteRead;
+            return byteRead;
+        }
+        
         public long lseek( int fd, long pos, LseekOption o ) {
-            System.err.println("In lseek with fd: " + fd);
-            
+            long start = System.nanoTime();
+            long ret = doLseek(fd, pos, o);
+            metrics.histogram("lseek").record(System.nanoTime() - start);
+            if (EventLog.enabled(EventLog.DEBUG)) {
+                EventLog.debug("lseek", pathOf(fd), fd, ret);
+            }
+            return ret;
+        }
+        
+        private long doLseek( int fd, long pos, LseekOption o ) {
             /*
              * When lseek to a fd, lseek to the copy it owns
              */
@@ -612,6 +1551,22 @@ class Proxy {
             if (fileMap.get(fd) == null) { // If fd is invalid, then return EBADF
                 return Errors.EBADF;
             }
+            FileInstance seekFi = fileMap.get(fd);
+            if (seekFi.blocks != null || seekFi.buffer != null || seekFi.readThrough != null) {
+                long base = 0;
+                if (o.name().equalsIgnoreCase("FROM_CURRENT")) {
+                    base = seekFi.position;
+                } else if (o.name().equalsIgnoreCase("FROM_END")) {
+                    base = seekFi.fileSize;
+                } else if (!o.name().equalsIgnoreCase("FROM_START")) {
+                    return Errors.EINVAL;
+                }
+                if (base + pos < 0) {
+                    return Errors.EINVAL;
+                }
+                seekFi.position = base + pos;
+                return seekFi.position;
+            }
             RandomAccessFile rFile = fileMap.get(fd).raf;
             if (o.name().equalsIgnoreCase("FROM_CURRENT")) {
                 
@@ -644,8 +1599,16 @@ class Proxy {
         }
         
         public int unlink( String path ) {
-            System.err.println("In unlink with path: " + path);
-            
+            long start = System.nanoTime();
+            int ret = doUnlink(path);
+            metrics.histogram("unlink").record(System.nanoTime() - start);
+            if (EventLog.enabled(EventLog.DEBUG)) {
+                EventLog.debug("unlink", path, -1, ret);
+            }
+            return ret;
+        }
+        
+        private int doUnlink( String path ) {
             /*
              * When unlink to a path, push back unlink updates to server
              * as well as delete copy in the cache and update LRU
@@ -654,7 +1617,7 @@ class Proxy {
             // need to ensure the path is valid under server root dir
             FileInstance latestVer = null;
             try {
-                latestVer = server.getFileVersion(path);
+                latestVer = getLatestVersion(path);
             } catch (RemoteException e1) {
                 // TODO Auto-generated catch block
                 e1.printStackTrace();
@@ -672,8 +1635,22 @@ class Proxy {
             
             File file = new File(cachePath);
             
+            pathLocks.lock(path);
             try {
                 int ret = server.unlinkFile(serverPath);
+                if (ret == 0) {
+                    dropFromMemory(path);
+                    if (trace != null) {
+                        trace.record(TraceWriter.UNLINK, path, 0, 0, -1);
+                    }
+                }
+                BlockMap bm = path2blocks.get(path);
+                if (ret == 0 && bm != null) {
+                    path2blocks.remove(path);
+                    if (bm.openCnt == 0) {
+                        dropBlocks(bm);
+                    }
+                }
                 if (file.isFile()) {
                     if (ret == 0)
                         fileVersion.remove(path);
@@ -685,6 +1662,8 @@ class Proxy {
                 return ret;
             } catch (RemoteException e) {
                 e.printStackTrace();
+            } finally {
+                pathLocks.unlock(path);
             }
             
             return 0;
@@ -699,71 +1678,252 @@ class Proxy {
         }
         
         // Push fresh file into the front of the cache
-        public synchronized void pushIntoCache(FileInstance fi) {
-            lruQueue.add(0, fi);
-            cacheSize += fi.fileSize;
+        public void pushIntoCache(FileInstance fi) {
+            pushReserved(fi, 0);
+        }
+        
+        // Push fresh file into the front of the cache, taking over reserved bytes from evictForFile
+        public void pushReserved(FileInstance fi, int reserved) {
+            synchronized (cacheLock) {
+                policy.insert(fi);
+                cacheSize += fi.fileSize - reserved;
+                if (cacheIndex != null && fi.blocks == null) {
+                    Long version = fileVersion.get(fi.path);
+                    cacheIndex.put(fi.path, version == null ? 0 : version, fi.fileSize);
+                }
+            }
         }
         
         // find the number of file to evict from the cache
-        // Then evict them from the back of the cache
-        // Return true if there is enough space can be cleared out to contain the new file
-        // Return false to let the caller to decide what to do
-        public synchronized boolean evictForFile( FileInstance fi ) {
-            int tmpSize = 0;
-            for (int i = lruQueue.size() - 1; i >= 0; i--) {
-                FileInstance queueNode = lruQueue.get(i);
-                
-                tmpSize += queueNode.fileSize;
-                
-                if (cacheSize - tmpSize + fi.fileSize <= Proxy.cacheLim)	break;
+        // Then evict them in the order the policy picks, and reserve the size of the new file
+        // in the same critical section, so concurrent misses can't overrun cacheLim together
+        // Return true if there is enough space can be cleared out to contain the new file,
+        // the caller then owns the reservation: pushReserved or addCacheSize it, or give it back
+        // Return false to let the caller to decide what to do, nothing is reserved then
+        public boolean evictForFile( FileInstance fi ) {
+            synchronized (cacheLock) {
+                return evictForFileLocked(fi);
             }
-            if (cacheSize - tmpSize + fi.fileSize > Proxy.cacheLim) {
+        }
+        
+        // Victims are evicted under their path lock, one whose lock is held is in use,
+        // by another thread or by the caller itself, and is skipped by the policy in place
+        private boolean evictForFileLocked( FileInstance fi ) {
+            int tmpSize = 0;
+            // the path lock of a victim is taken while the policy tests it, and kept
+            Predicate<FileInstance> inUse = new Predicate<FileInstance>() {
+                public boolean test(FileInstance queueNode) {
+                    return !pathLocks.tryLock(queueNode.path);
+                }
+            };
+            // see whether enough space can be freed even if every entry goes
+            if (cacheSize - policy.getBytes() + fi.fileSize > Proxy.cacheLim) {
                 return false;
             } else {
-                tmpSize = 0;
-                for (int i = lruQueue.size() - 1; i >= 0; i--) {
-                    FileInstance queueNode = lruQueue.get(i);
-                    
-                    if (cacheSize - tmpSize + fi.fileSize <= Proxy.cacheLim)	break;
-                    tmpSize += queueNode.fileSize;
-                    lruQueue.remove(i);
-                    // remove from LRU queue as well as delete the file from cache
-                    File file = new File(queueNode.absPath);
-                    file.delete();
-                    fileVersion.remove(queueNode.path);
+                while (cacheSize - tmpSize + fi.fileSize > Proxy.cacheLim) {
+                    FileInstance queueNode = policy.evict(inUse);
+                    if (queueNode == null) {
+                        break; // empty, or every entry left is in use
+                    }
+                    try {
+                        tmpSize += evictLocked(queueNode);
+                    } finally {
+                        pathLocks.unlock(queueNode.path);
+                    }
                 }
             }
             cacheSize -= tmpSize;
+            if (cacheSize + fi.fileSize > Proxy.cacheLim) {
+                return false; // entries in use hold the rest
+            }
+            cacheSize += fi.fileSize;
             return true;
         }
         
+        /*
+         * Delete an entry the policy gave up, caller holds cacheLock and its path lock
+         * @return: the bytes freed
+         */
+        private int evictLocked(FileInstance queueNode) {
+            int tmpSize = queueNode.fileSize;
+            metrics.counter("cache.evictions").increment();
+            metrics.counter("cache.evictedBytes").add(queueNode.fileSize);
+            if (cacheIndex != null && queueNode.blocks == null) {
+                cacheIndex.remove(queueNode.path);
+            }
+            // remove from LRU queue as well as delete the file from cache
+            File file = new File(queueNode.absPath);
+            file.delete();
+            fileVersion.remove(queueNode.path);
+            if (memTier != null) {
+                tmpSize += memTier.remove(queueNode.path); // the master copy is gone, so is its memory copy
+            }
+            if (queueNode.blocks != null) {
+                queueNode.blocks.clear(queueNode.blockIdx); // read fetches it again
+            }
+            return tmpSize;
+        }
+        
         // evict an item from cache if it's no longer in it
-        public synchronized void evictFromCache(FileInstance fi) {
-            int idx = lruQueue.indexOf(fi);
-            if (idx >= 0) {
-                lruQueue.remove(idx);
-                cacheSize -= fi.fileSize;
+        public void evictFromCache(FileInstance fi) {
+            synchronized (cacheLock) {
+                if (policy.remove(fi)) {
+                    cacheSize -= fi.fileSize;
+                    if (cacheIndex != null && fi.blocks == null) {
+                        cacheIndex.remove(fi.path);
+                    }
+                }
+            }
+        }
+        
+        // Change the size of an entry, e.g. when its master copy is written back
+        // Cache size is left to the caller
+        public void resizeInCache(FileInstance fi, int size) {
+            synchronized (cacheLock) {
+                policy.resize(fi, size);
+            }
+        }
+        
+        // Record a hit on an entry
+        public void updateCache(FileInstance fi) {
+            synchronized (cacheLock) {
+                policy.access(fi); // no-op if it is not in the cache
+                if (cacheIndex != null && fi != null && fi.blocks == null && policy.contains(fi)) {
+                    cacheIndex.access(fi.path);
+                }
+            }
+        }
+        
+        // Refresh the recency of an entry on close, the open already counted the reference
+        public void touchCache(FileInstance fi) {
+            synchronized (cacheLock) {
+                policy.touch(fi); // no-op if it is not in the cache
+                if (cacheIndex != null && fi != null && fi.blocks == null && policy.contains(fi)) {
+                    cacheIndex.access(fi.path);
+                }
+            }
+        }
+        
+        /*
+         * Bring a stale copy in the cache up to date by fetching only the blocks that differ
+         * Block checksums of the stale copy are sent to server, which answers with blocks
+         * to reuse and literal bytes, in the style of rsync
+         * Falls back to getFileFromServer if there is no usable stale copy or it is not worth it
+         * @return: same as getFileFromServer
+         */
+        public int getDeltaFromServer(String cachePath, String serverPath, OpenOption o) {
+            String absPath = getCachePath(cachePath);
+            File stale = new File(absPath);
+            if (!stale.isFile() || stale.length() < BlockChecksums.blockSizeFor(stale.length())) {
+                return getFileFromServer(cachePath, serverPath, o);
+            }
+            
+            RandomAccessFile old = null;
+            OutputStream out = null;
+            File tmpFile = null;
+            try {
+                old = new RandomAccessFile(stale, "r");
+                BlockChecksums sums = BlockChecksums.of(old);
+                FileDelta delta = server.getFileDelta(serverPath, sums);
+                if (delta.retVal < 0 || delta.fullFetch) {
+                    old.close();
+                    return getFileFromServer(cachePath, serverPath, o);
+                }
+                metrics.counter("delta.fetches").increment();
+                metrics.counter("delta.bytes").add(delta.retVal);
+                metrics.counter("delta.literalBytes").add(delta.literalSize);
+                EventLog.debug("delta", serverPath, -1, delta.literalSize);
+                
+                // rebuild the latest version aside, then replace the stale copy
+                tmpFile = File.createTempFile("delta", null, stale.getParentFile());
+                out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+                byte[] block = new byte[sums.blockSize];
+                int literalIdx = 0;
+                for (int idx : delta.blocks) {
+                    if (idx < 0) {
+                        out.write(delta.literals.get(literalIdx++));
+                    } else {
+                        old.seek((long)idx * sums.blockSize);
+                        old.readFully(block);
+                        out.write(block);
+                    }
+                }
+                out.close();
+                old.close();
+                if (!tmpFile.renameTo(stale)) {
+                    tmpFile.delete();
+                    return getFileFromServer(cachePath, serverPath, o);
+                }
+                return 0;
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    if (out != null)	out.close();
+                    if (old != null)	old.close();
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+                if (tmpFile != null)	tmpFile.delete();
+                return getFileFromServer(cachePath, serverPath, o);
+            }
+        }
+        
+        /*
+         * Download a file into out on the stream port of server
+         * @return: 0 if succeed, ENOSYS if the chunk path should be used instead,
+         *          other errno (negative) if failed
+         */
+        private int streamFromServer(FileOutputStream out, String serverPath, int length) {
+            try {
+                StreamTicket ticket = server.openStream(serverPath, 0, length, false);
+                if (ticket.retVal < 0) {
+                    return ticket.retVal;
+                }
+                long received = StreamClient.download(Proxy.serverip, ticket, out.getChannel(), 0);
+                if (received < length) {
+                    System.err.println("Stream of " + serverPath + " ended at " + received + " of " + length);
+                    return Errors.ENOSYS;
+                }
+                return 0;
+            } catch (IOException e) {
+                System.err.println("Stream of " + serverPath + " failed: " + e);
+                return Errors.ENOSYS;
             }
         }
         
-        // Remove from the origin position first
-        public synchronized void updateCache(FileInstance fi) {
-            int idx = lruQueue.indexOf(fi);
-            if (idx == 0)	return; // If it is already the latest, then no need to update
-            if (idx >= lruQueue.size())	return; // If the idx is invalid, then return too
-            if (idx < 0)	return;
-            FileInstance fileToUpdate = lruQueue.get(idx);
-            lruQueue.remove(idx);
-            lruQueue.add(0, fileToUpdate);
+        /*
+         * Upload [offset, end) of a private copy on the stream port of server
+         * @return: 0 if succeed, ENOSYS if the chunk path should be used instead,
+         *          other errno (negative) if failed
+         */
+        private int streamToServer(FileInstance fi, long offset, long end) {
+            try {
+                StreamTicket ticket = server.openStream(fi.origPath, offset, end - offset, true);
+                if (ticket.retVal < 0) {
+                    return ticket.retVal;
+                }
+                StreamClient.upload(Proxy.serverip, ticket, fi.raf.getChannel());
+                int written = server.finishStream(ticket.id);
+                if (written < 0) {
+                    return written;
+                }
+                if (written < end - offset) {
+                    return Errors.ENOSYS;
+                }
+                return 0;
+            } catch (IOException e) {
+                System.err.println("Stream of " + fi.origPath + " failed: " + e);
+                return Errors.ENOSYS;
+            }
         }
         
-        // need to ensure that no two client get the identical file in the mean time
-        public synchronized int getFileFromServer(String cachePath, String serverPath, OpenOption o) {
+        // caller holds the path lock, so no two client get the identical file in the mean time
+        public int getFileFromServer(String cachePath, String serverPath, OpenOption o) {
             /*
              * Request the latest version of file from the server in chunks
              */
             String absPath = getCachePath(cachePath);
-            OutputStream out = null;
+            FileOutputStream out = null;
             try {
                 out = new FileOutputStream(absPath);
             } catch (FileNotFoundException e1) {
@@ -789,40 +1949,31 @@ class Proxy {
                 return fp.retVal;
             }
             
-            // Start to read chunks of file
-            fp.offset = 0;
-            while (true) {
-                Chunk chunk = null;
-                try {
-                    chunk = server.readFile(fp);
-                } catch (RemoteException e1) {
-                    e1.printStackTrace();
-                }
-                if (chunk.size >= 0) { // return value >= 0, then it is able to read the content of the file
-                    try {
-                        out.write(chunk.content, 0, chunk.content.length); // write the whole content in one time
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                } else { // return value < 0, then there is some error returned by server
+            // Stream the whole file if server supports it, otherwise read chunks
+            if (streaming) {
+                int ret = streamFromServer(out, serverPath, byteToRead);
+                if (ret != Errors.ENOSYS) {
                     try {
                         out.close();
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
-                    return chunk.size;
+                    return ret;
                 }
-                fp.offset += chunk.size;
-                if (fp.offset >= byteToRead) // all chunks are read
-                    break;
             }
             
+            // Start to read chunks of file, keeping a window of requests in flight
+            int ret = 0;
             try {
-                out.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                ret = pipeline.fetch(server, serverPath, out.getChannel(), byteToRead, newSizer());
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
-            return 0;
+            return ret;
         }
     }
     
@@ -832,12 +1983,163 @@ class Proxy {
         }
     }
     
+    // Create an eviction policy by its name on the command line
+    private static EvictionPolicy newPolicy(String name, long capacity) {
+        if (name.equalsIgnoreCase("lfu")) {
+            return new LfuPolicy();
+        } else if (name.equalsIgnoreCase("arc")) {
+            return new ArcPolicy(capacity);
+        } else if (name.equalsIgnoreCase("gdsf")) {
+            return new GdsfPolicy();
+        }
+        return new LruPolicy();
+    }
+    
     public static void main(String[] args) throws IOException {
         serverip = args[0];
         serverport = args[1];
         cachePath = args[2];
         cacheLim = Long.parseLong(args[3]);
         
+        // optional settings after the required arguments, in the form of --name=value
+        boolean useAdmission = false;
+        String preloadManifest = null;
+        int preloadThreads = 4;
+        for (int i = 4; i < args.length; i++) {
+            if (args[i].equals("--lease")) {
+                leases = new ProxyLeases(); // exported for server to revoke leases
+            } else if (args[i].equals("--stream")) {
+                streaming = true;
+            } else if (args[i].startsWith("--block-size=")) {
+                blockSize = Integer.parseInt(args[i].substring("--block-size=".length()));
+            } else if (args[i].startsWith("--read-ahead=")) {
+                readAheadMax = Integer.parseInt(args[i].substring("--read-ahead=".length()));
+            } else if (args[i].startsWith("--mem-tier=")) {
+                memTierBudget = Long.parseLong(args[i].substring("--mem-tier=".length()));
+            } else if (args[i].startsWith("--mem-file-max=")) {
+                memTierFileMax = Integer.parseInt(args[i].substring("--mem-file-max=".length()));
+            } else if (args[i].startsWith("--policy=")) {
+                policyName = args[i].substring("--policy=".length());
+                if (!policyName.matches("(?i)lru|lfu|arc|gdsf")) {
+                    System.err.println("Unknown policy " + policyName + ", using lru");
+                    policyName = "lru";
+                }
+            } else if (args[i].equals("--admission")) {
+                useAdmission = true;
+            } else if (args[i].startsWith("--admit-max=")) {
+                admitMax = Double.parseDouble(args[i].substring("--admit-max=".length()));
+            } else if (args[i].equals("--persist-index")) {
+                persistIndex = true;
+            } else if (args[i].startsWith("--preload=")) {
+                preloadManifest = args[i].substring("--preload=".length());
+            } else if (args[i].startsWith("--preload-threads=")) {
+                preloadThreads = Integer.parseInt(args[i].substring("--preload-threads=".length()));
+            } else if (args[i].startsWith("--trace=")) {
+                trace = new TraceWriter(args[i].substring("--trace=".length()));
+            } else if (args[i].startsWith("--log-level=")) {
+                EventLog.setLevel(args[i].substring("--log-level=".length()));
+            } else if (args[i].startsWith("--log-path=")) {
+                EventLog.setPathFilter(args[i].substring("--log-path=".length()));
+            } else if (args[i].startsWith("--log-fd=")) {
+                EventLog.setFdFilter(Long.parseLong(args[i].substring("--log-fd=".length())));
+            } else if (args[i].startsWith("--metrics-interval=")) {
+                metricsInterval = Long.parseLong(args[i].substring("--metrics-interval=".length()));
+            } else if (args[i].equals("--compress")) {
+                compress = true;
+            } else if (args[i].startsWith("--chunk-min=")) {
+                minChunkSize = Integer.parseInt(args[i].substring("--chunk-min=".length()));
+            } else if (args[i].startsWith("--chunk-max=")) {
+                maxChunkSize = Integer.parseInt(args[i].substring("--chunk-max=".length()));
+            } else if (args[i].startsWith("--window=")) {
+                window = Integer.parseInt(args[i].substring("--window=".length()));
+            } else {
+                System.err.println("Unknown option " + args[i]);
+            }
+        }
+        if (useAdmission) {
+            admission = new AdmissionFilter((long)(admitMax * cacheLim), 1 << 16);
+        }
+        
+        metrics.gauge("cache.size", new LongSupplier() {
+            public long getAsLong() {
+                return cacheSize;
+            }
+        });
+        metrics.gauge("cache.requests", new LongSupplier() {
+            public long getAsLong() {
+                return cacheStats.getRequests();
+            }
+        });
+        metrics.gauge("cache.hits", new LongSupplier() {
+            public long getAsLong() {
+                return cacheStats.getHits();
+            }
+        });
+        metrics.gauge("fetch.executed", new LongSupplier() {
+            public long getAsLong() {
+                return fetches == null ? 0 : fetches.getExecuted();
+            }
+        });
+        metrics.gauge("fetch.coalesced", new LongSupplier() {
+            public long getAsLong() {
+                return fetches == null ? 0 : fetches.getCoalesced();
+            }
+        });
+        metrics.gauge("admission.declined", new LongSupplier() {
+            public long getAsLong() {
+                return admission == null ? 0 : admission.getDeclined();
+            }
+        });
+        metrics.gauge("memTier.used", new LongSupplier() {
+            public long getAsLong() {
+                return memTier == null ? 0 : memTier.getUsed();
+            }
+        });
+        metrics.startDump(metricsInterval);
+        
+        // the tail of the trace is still buffered when the proxy is stopped
+        if (trace != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    trace.close();
+                }
+            }));
+        }
+        
+        // warm the cache in the background while clients are already served
+        if (preloadManifest != null) {
+            final FileHandler loader = new FileHandler();
+            preloader = new Preloader(new Preloader.Target() {
+                public String[] expand(String glob) throws Exception {
+                    return loader.server.listFiles(glob);
+                }
+                public int load(String path) {
+                    return loader.preload(path);
+                }
+            }, preloadThreads);
+            preloader.start(preloadManifest);
+            metrics.gauge("preload.total", new LongSupplier() {
+                public long getAsLong() {
+                    return preloader.getTotal();
+                }
+            });
+            metrics.gauge("preload.done", new LongSupplier() {
+                public long getAsLong() {
+                    return preloader.getDone();
+                }
+            });
+            metrics.gauge("preload.failed", new LongSupplier() {
+                public long getAsLong() {
+                    return preloader.getFailed();
+                }
+            });
+            metrics.gauge("preload.bytes", new LongSupplier() {
+                public long getAsLong() {
+                    return preloader.getBytes();
+                }
+            });
+        }
+        
         while (true) {
             (new RPCreceiver(new FileHandlingFactory())).run();
             
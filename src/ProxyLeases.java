@@ -0,0 +1,89 @@
+/*
+ * ProxyLeases.java
+ * This class keeps the read leases held by proxy, keyed by the path passed by client
+ * While a lease is valid, the version it was granted with is used without asking server
+ * It is exported through RMI so that server can revoke leases when a file changes
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ProxyLeases extends UnicastRemoteObject implements LeaseCallbackIf {
+
+    private static final long serialVersionUID = 2841917520467311023L;
+
+    private static class Lease {
+        FileInstance version; // version granted with the lease
+        long expiry; // local expiry time in ms
+
+        Lease(FileInstance version, long expiry) {
+            this.version = version;
+            this.expiry = expiry;
+        }
+    }
+
+    private ConcurrentHashMap<String, Lease> leases;
+    
+    private long epoch = 0; // number of revocations received
+
+    public ProxyLeases() throws RemoteException {
+        leases = new ConcurrentHashMap<String, Lease>();
+    }
+
+    /*
+     * Get the version of a path under a valid lease
+     * @return: file instance with version info, null if there is no valid lease
+     */
+    public FileInstance get(String path) {
+        Lease lease = leases.get(path);
+        if (lease == null) {
+            return null;
+        }
+        if (lease.expiry <= System.currentTimeMillis()) {
+            leases.remove(path, lease);
+            return null;
+        }
+        return lease.version;
+    }
+
+    // Get the revocation epoch, to be passed to put along with the request time
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    /*
+     * Record a lease granted by server
+     * @param: requestTime is the local time before the request was sent, so that the
+     *         local expiry is never later than the one kept by server
+     * @param: requestEpoch is the epoch before the request was sent, the lease is dropped
+     *         if a revocation arrived in the mean time since it may be for this very grant
+     */
+    public synchronized void put(String path, FileInstance version, long requestTime, long requestEpoch) {
+        if (version.leaseTerm <= 0 || version.fileSize < 0) {
+            return; // no lease granted, or an error result
+        }
+        if (requestEpoch != epoch) {
+            return;
+        }
+        leases.put(path, new Lease(version, requestTime + version.leaseTerm));
+    }
+
+    // Drop the leases of every client path resolving to the server path
+    @Override
+    public synchronized void invalidate(String path) throws RemoteException {
+        epoch++;
+        Iterator<Map.Entry<String, Lease>> it = leases.entrySet().iterator();
+        while (it.hasNext()) {
+            Lease lease = it.next().getValue();
+            if (path.equals(lease.version.path)) {
+                it.remove();
+            }
+        }
+    }
+}
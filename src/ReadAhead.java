@@ -0,0 +1,71 @@
+/*
+ * ReadAhead.java
+ * This class detects sequential readers and prefetches the blocks ahead of them in the background
+ * The window of a fd doubles on every read that starts where the last one ended,
+ * up to a maximum, and collapses as soon as the fd seeks elsewhere
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReadAhead {
+
+    private int maxWindow; // max number of blocks prefetched ahead of a fd
+    private ExecutorService pool; // threads fetching blocks in the background
+    private Set<String> inFlight; // names of the blocks being prefetched
+    private AtomicLong issued = new AtomicLong(); // number of blocks prefetched
+
+    public ReadAhead(int maxWindow, int threads) {
+        this.maxWindow = maxWindow;
+        inFlight = ConcurrentHashMap.newKeySet();
+        pool = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "read-ahead");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /*
+     * Update the access pattern of a fd after it read [start, end)
+     * @return: the number of blocks to prefetch from end on, 0 if the fd is not sequential
+     */
+    public int advance(FileInstance fi, long start, long end) {
+        if (start == fi.seqEnd) {
+            fi.raWindow = fi.raWindow == 0 ? 1 : Math.min(fi.raWindow * 2, maxWindow);
+        } else {
+            fi.raWindow = 0; // random access, stop prefetching
+        }
+        fi.seqEnd = end;
+        return fi.raWindow;
+    }
+
+    // Fetch a block in the background, unless it is already being fetched
+    public void submit(final String name, final Runnable fetch) {
+        if (!inFlight.add(name)) {
+            return;
+        }
+        issued.incrementAndGet();
+        pool.execute(new Runnable() {
+            public void run() {
+                try {
+                    fetch.run();
+                } finally {
+                    inFlight.remove(name);
+                }
+            }
+        });
+    }
+
+    public long getIssued() {
+        return issued.get();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * RollingChecksum.java
+ * This class computes the weak rolling checksum used by delta fetch, in the style of rsync
+ * The checksum of a window can be rolled forward by one byte in constant time
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.nio.ByteBuffer;
+
+public class RollingChecksum {
+
+    // Checksum of len bytes from off
+    public static int compute(ByteBuffer buf, int off, int len) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < len; i++) {
+            int x = buf.get(off + i) & 0xff;
+            a += x;
+            b += (len - i) * x;
+        }
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+
+    // Checksum of len bytes from off of a byte array
+    public static int compute(byte[] buf, int off, int len) {
+        return compute(ByteBuffer.wrap(buf), off, len);
+    }
+
+    // Roll the checksum of a window of len bytes forward, dropping out and taking in
+    public static int roll(int sum, byte out, byte in, int len) {
+        int a = sum & 0xffff;
+        int b = (sum >>> 16) & 0xffff;
+        a = a - (out & 0xff) + (in & 0xff);
+        b = b - len * (out & 0xff) + a;
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+}
@@ -7,6 +7,18 @@
 
 import java.io.*;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.stream.Stream;
 import java.rmi.registry.*;
 import java.rmi.server.UnicastRemoteObject;
 import java.rmi.Naming;
@@ -23,10 +35,34 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
     
     private static String serverRoot = null; // root directory of server files
 	
-    public static final int chunkSize = 16384; // chunk size is set to 16384
+    public static final int chunkSize = 16384; // default chunk size is set to 16384
+    
+    private static int maxChunkSize = 1 << 20; // largest chunk size granted to proxies
+    
+    private static boolean compression = true; // if chunk payloads may be compressed
+    
+    private static long leaseTerm = 10000; // read lease term in ms
+    
+    private LeaseManager leaseManager; // read leases granted to proxies
+    
+    private static int handleCacheSize = 256; // max number of file handles kept open
+    
+    private static long handleIdleTimeout = 30000; // idle file handles are closed after it in ms
+    
+    private HandleCache handles; // open file handles shared by chunk transfers
+    
+    private static int streamPort = -1; // port of the bulk transfer stream, -1 if disabled
+    
+    private StreamServer streams = null; // bulk transfers outside RMI, null if disabled
+    
+    private static Metrics metrics = Metrics.forName("server"); // latencies and counters, exposed over JMX
+    
+    private static long metricsInterval = 0; // metrics are printed every this many ms, 0 if never
 
     public Server(String serverRoot) throws RemoteException{
         Server.serverRoot = serverRoot;
+        leaseManager = new LeaseManager(leaseTerm);
+        handles = new HandleCache(handleCacheSize, handleIdleTimeout);
     }
 	
     /*
@@ -35,48 +71,69 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
      */
     @Override
     public int writeFile( String path, FilePacket fp ) throws RemoteException {
-		
-        System.err.println("In write with path: " + path);
+        long start = System.nanoTime();
+        int ret = doWriteFile(path, fp);
+        metrics.histogram("writeFile").record(System.nanoTime() - start);
+        EventLog.debug("writeFile", path, -1, ret);
+        if (ret > 0) {
+            metrics.counter("bytes.written").add(ret);
+        }
+        return ret;
+    }
+
+    private int doWriteFile( String path, FilePacket fp ) throws RemoteException {
 		
         String absPath = getServerPath(path);
 		
         File file = new File(absPath);
-		
-        /*
-         * Error handling
-         */
-        // If the file is a directory
-        if (file.isDirectory()) {
-            return FileHandling.Errors.EISDIR;
+        
+        if (fp.compressed) {
+            if (fp.rawSize > maxChunkSize) {
+                return FileHandling.Errors.EINVAL; // larger than negotiated
+            }
+            fp.content = ChunkCodec.inflate(fp.content, fp.rawSize);
+            if (fp.content == null) {
+                return FileHandling.Errors.EINVAL; // corrupt payload
+            }
         }
-        // If the file has no permission to be read or write
-        if (!file.canRead() && !file.canWrite()) {
-            return FileHandling.Errors.EBADF;
+        if (fp.content.length > maxChunkSize) {
+            return FileHandling.Errors.EINVAL; // larger than negotiated
         }
-		
-        RandomAccessFile rFile = null;
+        
+        // checks are done once when the handle is opened, not on every chunk
+        HandleCache.Handle handle = null;
         try {
-            rFile = new RandomAccessFile(file, "rw");
-        } catch (FileNotFoundException e1) {
-            e1.printStackTrace();
-        }
-		
-        if (rFile != null) {
-            try {
-                // first seek to the file offset, then write from the offset
-                rFile.seek(fp.offset);
-                rFile.write(fp.content, 0, fp.content.length);
-            } catch (IOException e) {
-                rFile.close();
-                return FileHandling.Errors.EINVAL;
+            handle = handles.acquire(absPath);
+        } catch (IOException e) {
+            // If the file is a directory
+            if (file.isDirectory()) {
+                return FileHandling.Errors.EISDIR;
             }
+            // If the file has no permission to be read or write
+            return FileHandling.Errors.EBADF;
         }
 		
         try {
-            rFile.close();
+            if (!handle.writable) {
+                return FileHandling.Errors.EBADF;
+            }
+            // write from the file offset
+            ByteBuffer buf = ByteBuffer.wrap(fp.content);
+            long pos = fp.offset;
+            while (buf.hasRemaining()) {
+                pos += handle.channel.write(buf, pos);
+            }
+            if (fp.length >= 0) {
+                handle.channel.truncate(fp.length); // truncation pushed from proxy
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            return FileHandling.Errors.EINVAL;
+        } finally {
+            handles.release(handle);
         }
+        
+        // the file has changed, cached copies under lease are no longer valid
+        leaseManager.revoke(getLeasePath(absPath));
 		
         return fp.content.length;
     }
@@ -88,9 +145,16 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
      */
     @Override
     public int openFile( FilePacket fp ) throws RemoteException {
+        long start = System.nanoTime();
+        int ret = doOpenFile(fp);
+        metrics.histogram("openFile").record(System.nanoTime() - start);
+        EventLog.debug("openFile", fp.path, -1, ret);
+        return ret;
+    }
+
+    private int doOpenFile( FilePacket fp ) throws RemoteException {
         String path = fp.path;
         String o = fp.openOption;
-        System.err.println("In read with fd: " + path);
 
         String absPath = getServerPath(path); // get absolute path of the file on server
         File file = new File(absPath);
@@ -98,8 +162,9 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
         if (o.equalsIgnoreCase("CREATE")) {
             if (!file.isFile()) { // if not exists, then create file
                 try {
-                    System.err.println("CREATE file: " + path);
+                    EventLog.debug("create", path, -1, 0);
                     file.createNewFile();
+                    leaseManager.revoke(getLeasePath(absPath));
                 } catch (IOException e) {
                     return FileHandling.Errors.ENOMEM; // if new file can't be created, then may be out of mem
                 } catch (SecurityException e) {
@@ -109,8 +174,9 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
         } else if (o.equalsIgnoreCase("CREATE_NEW")) {
             if (!file.isFile()) { // if not exists, then create file
                 try {
-                    System.err.println("CREATE_NEW file: " + path);
+                    EventLog.debug("create new", path, -1, 0);
                     file.createNewFile();
+                    leaseManager.revoke(getLeasePath(absPath));
                 } catch (IOException e) {
                     // if new file can't be created, then may be out of mem
                     return FileHandling.Errors.ENOMEM;
@@ -125,14 +191,12 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
                 return FileHandling.Errors.EISDIR;
             }
             if (!file.isFile()) {  // if not exist, then return ENOENT error
-                System.err.println("WRITE file not exist: " + path);
                 return FileHandling.Errors.ENOENT;
             }
         } else { // "READ" option
             if ((!file.isDirectory()) && (!file.isFile())) { // if not a dir or file, then return ENOENT error
                 return FileHandling.Errors.ENOENT;
             }
-            System.err.println("READ file not exist: " + path);
             if (file.isDirectory()) {
                 return -1024; // -1024 means it is a dir
             }
@@ -144,7 +208,6 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
             return FileHandling.Errors.EISDIR;
         }
 		
-        System.err.println("Before file can read: " + path);
         if (!file.canRead()) {
             return FileHandling.Errors.EBADF;
         }
@@ -153,52 +216,302 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
 		
     }
 	
+    /*
+     * Negotiate the largest chunk size with a proxy
+     * @return: the smaller one of the proxy's and server's limits
+     */
+    @Override
+    public int negotiateChunkSize( int proxyMax ) throws RemoteException {
+        return Math.max(Math.min(proxyMax, maxChunkSize), 1);
+    }
+	
+    /*
+     * Negotiate compression of chunk payloads with a proxy
+     * @return: true if proxy wants it and server allows it
+     */
+    @Override
+    public boolean negotiateCompression( boolean wanted ) throws RemoteException {
+        return wanted && compression;
+    }
+	
     /*
      * Read from contents from offset of a file, then add content to buf to transfer back to proxy
      * @return: Chunk object with content read
      */
     @Override
     public Chunk readFile( FilePacket fp ) throws RemoteException {
+        long start = System.nanoTime();
+        Chunk ret = doReadFile(fp);
+        metrics.histogram("readFile").record(System.nanoTime() - start);
+        EventLog.debug("readFile", fp.path, -1, ret.size);
+        if (ret.size > 0) {
+            metrics.counter("bytes.read").add(ret.size);
+        }
+        return ret;
+    }
+
+    private Chunk doReadFile( FilePacket fp ) throws RemoteException {
         String path = fp.path;
-        System.err.println("In read with path: " + path);
 
         String absPath = getServerPath(path); // get absolute path of the file on server
-        File file = new File(absPath);
 		
-        RandomAccessFile rFile = null;
+        HandleCache.Handle handle = null;
         try {
-            rFile = new RandomAccessFile(file, "rw");
-        } catch (FileNotFoundException e1) {
-            e1.printStackTrace();
+            handle = handles.acquire(absPath);
+        } catch (IOException e) {
+            Chunk result = new Chunk(0);
+            result.size = FileHandling.Errors.EINVAL;
+            return result;
         }
 		
-        int byteRead = (int)file.length() - fp.offset;
-        if (byteRead > chunkSize)	byteRead = chunkSize; // each time read at most chunkSize of bytes
-		
-        Chunk result = new Chunk(byteRead);
-		
         try {
-            // seek to file position first, then read
-            rFile.seek(fp.offset);
-            byteRead = rFile.read(result.content, 0, byteRead);
-            System.err.println("Byte read: " + byteRead);
-            if (byteRead == -1)	byteRead = 0; // if read is finished
+            // a read of one version must not get the bytes of another
+            if (fp.version != 0 && new File(absPath).lastModified() != fp.version) {
+                Chunk result = new Chunk(0);
+                result.size = FileHandling.Errors.EBUSY;
+                return result;
+            }
+            long fileLen = handle.channel.size();
+            // each time read at most the requested chunk size of bytes
+            int size = fp.chunkSize > 0 ? Math.min(fp.chunkSize, maxChunkSize) : chunkSize;
+            int byteRead = (int)Math.max(Math.min(fileLen - fp.offset, size), 0);
+            
+            Chunk result = new Chunk(byteRead);
+            
+            // positional read, the handle is shared by concurrent transfers
+            ByteBuffer buf = ByteBuffer.wrap(result.content);
+            long pos = fp.offset;
+            while (buf.hasRemaining()) {
+                int n = handle.channel.read(buf, pos);
+                if (n < 0)	break; // if read is finished
+                pos += n;
+            }
+            byteRead = buf.position();
+            
+            if (byteRead == 0)	result.size = result.content.length;
+            else 				result.size = byteRead;
+            
+            // written while it was read, the bytes may be of both versions
+            if (fp.version != 0 && new File(absPath).lastModified() != fp.version) {
+                result = new Chunk(0);
+                result.size = FileHandling.Errors.EBUSY;
+                return result;
+            }
+            
+            // compress the payload if proxy asked for it and it is worth it
+            if (fp.compress && compression && ChunkCodec.worthCompressing(result.content, 0, byteRead)) {
+                long start = System.nanoTime();
+                byte[] deflated = ChunkCodec.deflate(result.content, 0, result.content.length);
+                result.codecNanos = System.nanoTime() - start;
+                if (deflated != null) {
+                    result.content = deflated;
+                    result.compressed = true;
+                }
+            }
+            return result;
         } catch (IOException e) {
+            Chunk result = new Chunk(0);
             result.size = FileHandling.Errors.ENOMEM;
             return result;
-        } catch (NullPointerException e) {
-            result.size = FileHandling.Errors.EINVAL;
-            return result;
+        } finally {
+            handles.release(handle);
         }
-		
+    }
+
+    /*
+     * Compute the difference between a stale copy at proxy and the latest file, in the style of rsync
+     * Blocks of the stale copy are matched at any offset of the latest file with the rolling
+     * checksum, then confirmed with MD5
+     * @param: relative path to the server, and block checksums of the stale copy
+     * @return: FileDelta with blocks to copy and literals, fullFetch set if it is not worth it
+     */
+    @Override
+    public FileDelta getFileDelta( String path, BlockChecksums sums ) throws RemoteException {
+        long start = System.nanoTime();
+        FileDelta ret = doGetFileDelta(path, sums);
+        metrics.histogram("getFileDelta").record(System.nanoTime() - start);
+        EventLog.debug("getFileDelta", path, -1, ret.fullFetch ? 1 : 0);
+        return ret;
+    }
+
+    private FileDelta doGetFileDelta( String path, BlockChecksums sums ) throws RemoteException {
+        FileDelta delta = new FileDelta();
+        String absPath = getServerPath(path);
+        File file = new File(absPath);
+        if (file.isDirectory()) {
+            delta.retVal = FileHandling.Errors.EISDIR;
+            return delta;
+        }
+        if (!file.isFile()) {
+            delta.retVal = FileHandling.Errors.ENOENT;
+            return delta;
+        }
+        if (!file.canRead()) {
+            delta.retVal = FileHandling.Errors.EBADF;
+            return delta;
+        }
+        
+        // index of the stale copy's blocks by weak checksum
+        HashMap<Integer, ArrayList<Integer>> index = new HashMap<Integer, ArrayList<Integer>>();
+        // low 16 bits of every weak checksum, rules out most windows without boxing a key
+        boolean[] lowHalf = new boolean[1 << 16];
+        for (int i = 0; i < sums.weak.length; i++) {
+            lowHalf[sums.weak[i] & 0xffff] = true;
+            ArrayList<Integer> same = index.get(sums.weak[i]);
+            if (same == null) {
+                same = new ArrayList<Integer>();
+                index.put(sums.weak[i], same);
+            }
+            same.add(i);
+        }
+        
+        HandleCache.Handle handle = null;
         try {
-            rFile.close();
+            handle = handles.acquire(absPath);
+            int len = (int)handle.channel.size();
+            MappedByteBuffer buf = handle.channel.map(FileChannel.MapMode.READ_ONLY, 0, len);
+            int bs = sums.blockSize;
+            MessageDigest md5 = BlockChecksums.md5();
+            byte[] block = new byte[bs];
+            
+            int pos = 0; // start of the current window
+            int literalStart = 0; // start of bytes not matched yet
+            int weak = 0;
+            if (len >= bs && !index.isEmpty()) {
+                weak = RollingChecksum.compute(buf, 0, bs);
+            }
+            while (pos + bs <= len && !index.isEmpty()) {
+                int matched = -1;
+                ArrayList<Integer> candidates = lowHalf[weak & 0xffff] ? index.get(weak) : null;
+                if (candidates != null) {
+                    buf.position(pos);
+                    buf.get(block, 0, bs);
+                    byte[] strong = md5.digest(block);
+                    for (int idx : candidates) {
+                        if (Arrays.equals(strong, sums.strong[idx])) {
+                            matched = idx;
+                            break;
+                        }
+                    }
+                }
+                if (matched >= 0) {
+                    delta.addLiteral(copyRange(buf, literalStart, pos));
+                    delta.addBlock(matched);
+                    pos += bs;
+                    literalStart = pos;
+                    if (pos + bs <= len) {
+                        weak = RollingChecksum.compute(buf, pos, bs);
+                    }
+                } else {
+                    if (pos + bs < len) {
+                        weak = RollingChecksum.roll(weak, buf.get(pos), buf.get(pos + bs), bs);
+                    }
+                    pos++;
+                }
+                // not worth it once literals exceed half of the file, give up early
+                if (delta.literalSize + (pos - literalStart) > len / 2) {
+                    delta.fullFetch = true;
+                    break;
+                }
+            }
+            if (!delta.fullFetch) {
+                delta.addLiteral(copyRange(buf, literalStart, len));
+                delta.fullFetch = delta.literalSize > len / 2;
+            }
+            delta.retVal = len;
         } catch (IOException e) {
-            e.printStackTrace();
+            delta.retVal = FileHandling.Errors.ENOMEM;
+        } finally {
+            if (handle != null) {
+                handles.release(handle);
+            }
         }
-        if (byteRead == 0)	result.size = result.content.length;
-        else 				result.size = byteRead;
-        return result;
+        if (delta.fullFetch) {
+            delta.blocks.clear();
+            delta.literals.clear();
+        }
+        return delta;
+    }
+    
+    // Copy bytes in [start, end) of a buffer
+    private byte[] copyRange(ByteBuffer buf, int start, int end) {
+        byte[] content = new byte[end - start];
+        buf.position(start);
+        buf.get(content);
+        return content;
+    }
+
+    // Start serving bulk transfers on a socket, port 0 picks any free port
+    public void startStreams(int port) throws IOException {
+        streams = new StreamServer(port, handles);
+        Thread listener = new Thread(streams, "stream-listener");
+        listener.setDaemon(true);
+        listener.start();
+        System.err.println("Stream transfers on port " + streams.getPort());
+    }
+    
+    /*
+     * Open a data stream to transfer a range of a file back-to-back on a socket
+     * @param: relative path to the server, range of the file, and its direction
+     * @return: ticket to present on the stream port, retVal is errno (negative) if failed
+     */
+    @Override
+    public StreamTicket openStream( String path, long offset, long length, boolean upload ) throws RemoteException {
+        EventLog.debug("openStream", path, -1, offset);
+        
+        if (streams == null) {
+            return new StreamTicket(FileHandling.Errors.ENOSYS);
+        }
+        String absPath = getServerPath(path);
+        File file = new File(absPath);
+        if (file.isDirectory()) {
+            return new StreamTicket(FileHandling.Errors.EISDIR);
+        }
+        if (!file.isFile()) {
+            return new StreamTicket(FileHandling.Errors.ENOENT);
+        }
+        return streams.register(absPath, offset, length, upload);
+    }
+    
+    /*
+     * Wait for an upload stream to finish
+     * @return: the number of bytes written, errno (negative) if failed
+     */
+    @Override
+    public int finishStream( long id ) throws RemoteException {
+        if (streams == null) {
+            return FileHandling.Errors.ENOSYS;
+        }
+        String absPath = streams.getUploadPath(id);
+        int ret = streams.await(id);
+        if (ret > 0) {
+            // the file has changed, cached copies under lease are no longer valid
+            leaseManager.revoke(getLeasePath(absPath));
+        }
+        return ret;
+    }
+
+    /*
+     * List the regular files under server root matching a glob pattern, e.g. for pre-warming a proxy
+     * @param: glob pattern of relative paths, like "data/*.csv" or "**.conf"
+     * @return: matching relative paths, empty if none or the pattern is invalid
+     */
+    @Override
+    public String[] listFiles( String glob ) throws RemoteException {
+        ArrayList<String> matches = new ArrayList<String>();
+        try {
+            final Path root = new File(serverRoot).getCanonicalFile().toPath();
+            final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            try (Stream<Path> walk = Files.walk(root)) {
+                walk.filter(Files::isRegularFile)
+                    .map(root::relativize)
+                    .filter(matcher::matches)
+                    .forEach(rel -> matches.add(rel.toString()));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("List of " + glob + " failed: " + e);
+        }
+        return matches.toArray(new String[0]);
     }
 
     /*
@@ -208,8 +521,14 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
      */
     @Override
     public int unlinkFile( String path ) throws RemoteException {
-        System.err.println("In unlink with path: " + path);
-		
+        long start = System.nanoTime();
+        int ret = doUnlinkFile(path);
+        metrics.histogram("unlinkFile").record(System.nanoTime() - start);
+        EventLog.debug("unlinkFile", path, -1, ret);
+        return ret;
+    }
+
+    private int doUnlinkFile( String path ) throws RemoteException {
         String absPath = getServerPath(path);
 		
         File file = new File(absPath);
@@ -219,6 +538,7 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
         if (!file.isFile()) {
             return FileHandling.Errors.ENOENT;
         }
+        String leasePath = getLeasePath(absPath);
         try {
             boolean deleteRes = file.delete();
             if (!deleteRes) {
@@ -227,6 +547,8 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
         } catch (SecurityException e) {
             return FileHandling.Errors.EPERM;
         }
+        handles.invalidate(absPath);
+        leaseManager.revoke(leasePath);
         return 0;
     }
 	
@@ -239,6 +561,31 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
         Server.listenPort = Integer.parseInt(args[0]);
         Server.serverRoot = args[1];
         
+        // optional settings after the required arguments, in the form of --name=value
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("--lease-term=")) {
+                Server.leaseTerm = Long.parseLong(args[i].substring("--lease-term=".length()));
+            } else if (args[i].startsWith("--chunk-max=")) {
+                Server.maxChunkSize = Integer.parseInt(args[i].substring("--chunk-max=".length()));
+            } else if (args[i].equals("--no-compress")) {
+                Server.compression = false;
+            } else if (args[i].startsWith("--stream-port=")) {
+                Server.streamPort = Integer.parseInt(args[i].substring("--stream-port=".length()));
+            } else if (args[i].startsWith("--handle-cache=")) {
+                Server.handleCacheSize = Integer.parseInt(args[i].substring("--handle-cache=".length()));
+            } else if (args[i].startsWith("--handle-idle=")) {
+                Server.handleIdleTimeout = Long.parseLong(args[i].substring("--handle-idle=".length()));
+            } else if (args[i].startsWith("--log-level=")) {
+                EventLog.setLevel(args[i].substring("--log-level=".length()));
+            } else if (args[i].startsWith("--log-path=")) {
+                EventLog.setPathFilter(args[i].substring("--log-path=".length()));
+            } else if (args[i].startsWith("--metrics-interval=")) {
+                Server.metricsInterval = Long.parseLong(args[i].substring("--metrics-interval=".length()));
+            } else {
+                System.err.println("Unknown option " + args[i]);
+            }
+        }
+        
         try {
             LocateRegistry.createRegistry(Server.listenPort);
         } catch (RemoteException e) {
@@ -253,6 +600,10 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
             System.exit(1);
         }
 			
+        if (streamPort >= 0) {
+            server.startStreams(streamPort);
+        }
+			
         try {
             Naming.rebind(String.format("//127.0.0.1:%d/ServerService",
                                         listenPort), server);
@@ -262,6 +613,7 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
             System.err.println(e); //you probably want to do some decent logging here
         }
 					
+        metrics.startDump(metricsInterval);
         System.err.println("Server is ready");
     }
 
@@ -279,6 +631,22 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
         return sb.toString();
     }
 
+    /*
+     * Get the path a lease is kept under, which is the canonical path relative to server root
+     * as returned in FileInstance.path
+     * @param: absolute path in the server
+     * @return: path relative to the server root
+     */
+    private String getLeasePath(String absPath) {
+        try {
+            String rootAbs = new File(Server.serverRoot).getCanonicalPath();
+            return new File(absPath).getCanonicalPath().substring(rootAbs.length());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return absPath;
+        }
+    }
+
     /*
      * Encapsulate error number in the file packet
      * @param: errno number
@@ -297,6 +665,14 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
      */
     @Override
     public FileInstance getFileVersion(String path) throws RemoteException {
+        long start = System.nanoTime();
+        FileInstance ret = doGetFileVersion(path);
+        metrics.histogram("getFileVersion").record(System.nanoTime() - start);
+        EventLog.debug("getFileVersion", path, -1, ret.fileSize);
+        return ret;
+    }
+
+    private FileInstance doGetFileVersion(String path) throws RemoteException {
 		
         String absPath = getServerPath(path); // get absolute path of the file on server
         File file = new File(absPath);
@@ -323,6 +699,7 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
         }
 		
         FileInstance fi = new FileInstance((int)file.length(), file.lastModified());
+        fi.isDir = file.isDirectory();
         try {
             fi.path = file.getCanonicalPath().substring(rootAbs.length());
         } catch (IOException e) {
@@ -331,4 +708,21 @@ public class Server extends UnicastRemoteObject implements SystemCallIf {
 		
         return fi;
     }
+
+    /*
+     * Get file version by its last modified time stamp, and grant a read lease on it
+     * @param: relative path to the server, and the proxy to be called back when it changes
+     * @return: file instance which contains timestamp and lease term
+     */
+    @Override
+    public FileInstance getFileVersionLeased(String path, LeaseCallbackIf holder) throws RemoteException {
+        // grant before reading the version, a change after this point always revokes it
+        String leasePath = getLeasePath(getServerPath(path));
+        long term = leaseManager.grant(leasePath, holder);
+        FileInstance fi = getFileVersion(path);
+        if (fi.fileSize >= 0) {
+            fi.leaseTerm = term;
+        }
+        return fi;
+    }
 }
@@ -0,0 +1,55 @@
+/*
+ * SingleFlight.java
+ * This class coalesces concurrent calls of the same key into one execution
+ * The first caller of a key runs the call, callers arriving while it is in flight
+ * wait for the same future and share its result
+ * Counters record how many calls were executed and how many were coalesced
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SingleFlight<V> {
+
+    private ConcurrentHashMap<String, FutureTask<V>> inFlight; // key to the running call
+    private AtomicLong executed = new AtomicLong(); // calls that actually ran
+    private AtomicLong coalesced = new AtomicLong(); // calls that waited for another one
+
+    public SingleFlight() {
+        inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+    }
+
+    /*
+     * Run the call of a key, or wait for the one already in flight
+     * @return: result of the call
+     */
+    public V run(String key, Callable<V> call) throws InterruptedException, ExecutionException {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            executed.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            return task.get();
+        }
+        coalesced.incrementAndGet();
+        return running.get();
+    }
+
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+}
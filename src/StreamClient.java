@@ -0,0 +1,69 @@
+/*
+ * StreamClient.java
+ * This class is the proxy side of bulk transfers outside RMI
+ * It connects to the stream port of server, presents the ticket id,
+ * then moves the range between the socket and a file channel
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+public class StreamClient {
+
+    /*
+     * Receive the range of a download ticket into a file channel at pos
+     * @return: the number of bytes received
+     */
+    public static long download(String host, StreamTicket ticket, FileChannel out, long pos) throws IOException {
+        SocketChannel sock = connect(host, ticket);
+        try {
+            long received = 0;
+            while (received < ticket.length) {
+                long n = out.transferFrom(sock, pos + received, ticket.length - received);
+                if (n <= 0)	break; // server closed the stream
+                received += n;
+            }
+            return received;
+        } finally {
+            sock.close();
+        }
+    }
+
+    /*
+     * Send the range of an upload ticket from a file channel
+     * @return: the number of bytes sent, server confirms what was written by finishStream
+     */
+    public static long upload(String host, StreamTicket ticket, FileChannel in) throws IOException {
+        SocketChannel sock = connect(host, ticket);
+        try {
+            long sent = 0;
+            while (sent < ticket.length) {
+                long n = in.transferTo(ticket.offset + sent, ticket.length - sent, sock);
+                if (n <= 0)	break; // file got shorter in the mean time
+                sent += n;
+            }
+            sock.shutdownOutput();
+            return sent;
+        } finally {
+            sock.close();
+        }
+    }
+
+    private static SocketChannel connect(String host, StreamTicket ticket) throws IOException {
+        SocketChannel sock = SocketChannel.open(new InetSocketAddress(host, ticket.port));
+        sock.socket().setTcpNoDelay(true);
+        ByteBuffer idBuf = ByteBuffer.allocate(8);
+        idBuf.putLong(ticket.id);
+        idBuf.flip();
+        while (idBuf.hasRemaining()) {
+            sock.write(idBuf);
+        }
+        return sock;
+    }
+}
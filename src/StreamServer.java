@@ -0,0 +1,186 @@
+/*
+ * StreamServer.java
+ * This class serves bulk transfers of server on a plain socket, outside RMI
+ * A transfer is registered through RMI first and gets a ticket, then proxy connects,
+ * presents the ticket id and the range is moved with FileChannel.transferTo/transferFrom
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class StreamServer implements Runnable {
+
+    private static final long ticketTimeout = 60000; // unused tickets are dropped after it in ms
+
+    private static class Transfer {
+        StreamTicket ticket;
+        String absPath; // absolute path of the file on server
+        long created; // time of registration in ms
+        CompletableFuture<Integer> done = new CompletableFuture<Integer>(); // bytes moved or errno
+
+        Transfer(StreamTicket ticket, String absPath) {
+            this.ticket = ticket;
+            this.absPath = absPath;
+            this.created = System.currentTimeMillis();
+        }
+    }
+
+    private ServerSocketChannel listener;
+    private HandleCache handles; // file handles shared with RMI transfers
+    private SecureRandom rand = new SecureRandom();
+    private ConcurrentHashMap<Long, Transfer> pending; // registered, not connected yet
+    private ConcurrentHashMap<Long, Transfer> uploads; // uploads not finished by proxy yet
+
+    public StreamServer(int port, HandleCache handles) throws IOException {
+        this.handles = handles;
+        pending = new ConcurrentHashMap<Long, Transfer>();
+        uploads = new ConcurrentHashMap<Long, Transfer>();
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+    }
+
+    public int getPort() {
+        return listener.socket().getLocalPort();
+    }
+
+    // Register a transfer of [offset, offset + length) of a file, and get its ticket
+    public StreamTicket register(String absPath, long offset, long length, boolean upload) {
+        dropExpired();
+        StreamTicket ticket = new StreamTicket(rand.nextLong(), getPort(), offset, length, upload);
+        Transfer transfer = new Transfer(ticket, absPath);
+        pending.put(ticket.id, transfer);
+        if (upload) {
+            uploads.put(ticket.id, transfer);
+        }
+        return ticket;
+    }
+
+    // Absolute path of the file an upload is for, null if the upload is unknown
+    public String getUploadPath(long id) {
+        Transfer transfer = uploads.get(id);
+        return transfer == null ? null : transfer.absPath;
+    }
+
+    /*
+     * Wait for an upload to finish
+     * @return: the number of bytes written, errno (negative) if failed
+     */
+    public int await(long id) {
+        Transfer transfer = uploads.remove(id);
+        if (transfer == null) {
+            return FileHandling.Errors.EINVAL;
+        }
+        try {
+            return transfer.done.get(ticketTimeout, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            return FileHandling.Errors.EINVAL;
+        }
+    }
+
+    // Accept streams and serve each of them in its own thread
+    public void run() {
+        while (true) {
+            final SocketChannel sock;
+            try {
+                sock = listener.accept();
+            } catch (IOException e) {
+                System.err.println("Stream listener stopped: " + e);
+                return;
+            }
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    serve(sock);
+                }
+            }, "stream-transfer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void serve(SocketChannel sock) {
+        Transfer transfer = null;
+        HandleCache.Handle handle = null;
+        try {
+            ByteBuffer idBuf = ByteBuffer.allocate(8);
+            while (idBuf.hasRemaining()) {
+                if (sock.read(idBuf) < 0) {
+                    return;
+                }
+            }
+            idBuf.flip();
+            transfer = pending.remove(idBuf.getLong());
+            if (transfer == null) {
+                return; // unknown or expired ticket
+            }
+
+            handle = handles.acquire(transfer.absPath);
+            FileChannel channel = handle.channel;
+            long pos = transfer.ticket.offset;
+            long end = transfer.ticket.offset + transfer.ticket.length;
+            if (transfer.ticket.upload) {
+                if (!handle.writable) {
+                    transfer.done.complete(FileHandling.Errors.EBADF);
+                    return;
+                }
+                while (pos < end) {
+                    long n = channel.transferFrom(sock, pos, end - pos);
+                    if (n <= 0)	break; // proxy closed the stream
+                    pos += n;
+                }
+            } else {
+                while (pos < end) {
+                    long n = channel.transferTo(pos, end - pos, sock);
+                    if (n <= 0)	break; // file got shorter in the mean time
+                    pos += n;
+                }
+            }
+            transfer.done.complete((int)(pos - transfer.ticket.offset));
+        } catch (IOException e) {
+            if (transfer != null) {
+                transfer.done.complete(FileHandling.Errors.EINVAL);
+            }
+        } finally {
+            if (handle != null) {
+                handles.release(handle);
+            }
+            try {
+                sock.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Drop tickets proxy never used, and uploads proxy never waited for
+    private void dropExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Long, Transfer>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Transfer transfer = it.next().getValue();
+            if (now - transfer.created > ticketTimeout) {
+                it.remove();
+                uploads.remove(transfer.ticket.id);
+            }
+        }
+        it = uploads.entrySet().iterator();
+        while (it.hasNext()) {
+            Transfer transfer = it.next().getValue();
+            if (transfer.done.isDone() && now - transfer.created > ticketTimeout) {
+                it.remove();
+            }
+        }
+    }
+}
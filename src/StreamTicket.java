@@ -0,0 +1,32 @@
+/*
+ * StreamTicket.java
+ * This class is used to hand a bulk transfer from RMI over to a data stream
+ * Proxy connects to the stream port of server and presents the id,
+ * then the range of the file is sent back-to-back on the socket
+ * It needs to be serializable because of RMI
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+public class StreamTicket implements java.io.Serializable {
+    public long id; // presented by proxy as the first 8 bytes on the stream
+    public int port; // stream port of server
+    public long offset; // offset of the range in the file
+    public long length; // length of the range
+    public boolean upload; // true if proxy sends the range to server
+    public int retVal = 0; // errno (negative) if the stream can't be opened
+
+    public StreamTicket(long id, int port, long offset, long length, boolean upload) {
+        this.id = id;
+        this.port = port;
+        this.offset = offset;
+        this.length = length;
+        this.upload = upload;
+    }
+
+    // This constructor is for error handling in server
+    public StreamTicket(int retVal) {
+        this.retVal = retVal;
+    }
+}
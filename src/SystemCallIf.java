@@ -11,15 +11,37 @@ public interface SystemCallIf extends Remote {
     // Get file version by its modified time
     public FileInstance getFileVersion ( String path ) throws RemoteException;
     
+    // Get file version and grant a read lease on it to holder
+    // Lease term is returned in FileInstance.leaseTerm, holder is called back when the file changes
+    public FileInstance getFileVersionLeased ( String path, LeaseCallbackIf holder ) throws RemoteException;
+    
     // Write to a file by its path with content in FilePacket
     public int writeFile( String path, FilePacket fp ) throws RemoteException;
     
     // Open a file by content in FilePacket
     public int openFile( FilePacket fp ) throws RemoteException;
     
+    // Negotiate the largest chunk size, return the smaller one of the proxy's and server's limits
+    public int negotiateChunkSize( int proxyMax ) throws RemoteException;
+    
+    // Negotiate compression of chunk payloads, return true if both sides want it
+    public boolean negotiateCompression( boolean wanted ) throws RemoteException;
+    
     // Read a file by its content in FilePacket
     public Chunk readFile( FilePacket fp ) throws RemoteException;
     
+    // Get the difference between a stale copy, given by its block checksums, and the latest file
+    public FileDelta getFileDelta( String path, BlockChecksums sums ) throws RemoteException;
+    
+    // Open a data stream to transfer a range of a file outside RMI, from proxy to server if upload is set
+    public StreamTicket openStream( String path, long offset, long length, boolean upload ) throws RemoteException;
+    
+    // Wait for an upload stream to finish, return the number of bytes written or errno
+    public int finishStream( long id ) throws RemoteException;
+    
+    // List the files under server root whose relative path matches a glob pattern
+    public String[] listFiles( String glob ) throws RemoteException;
+    
     // Unlink a file by its path
     public int unlinkFile( String path ) throws RemoteException;
 }
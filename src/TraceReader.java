@@ -0,0 +1,99 @@
+/*
+ * TraceReader.java
+ * This class reads back a trace written by TraceWriter, one event at a time
+ * The fields of the current event are overwritten by next, so large traces are read
+ * without allocating per event; path records are taken in along the way
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+public class TraceReader {
+
+    // fields of the current event
+    public byte kind;
+    public int pathId;
+    public long time; // us since the trace started
+    public long size;
+    public long version;
+    public int mode;
+
+    private DataInputStream in;
+    private long startMillis;
+    private ArrayList<String> paths = new ArrayList<String>(); // path by id
+
+    public TraceReader(String file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        if (in.readLong() != TraceWriter.magic) {
+            in.close();
+            throw new IOException(file + " is not a proxy trace");
+        }
+        startMillis = in.readLong();
+    }
+
+    /*
+     * Move to the next event
+     * @return: false at the end of the trace, a torn last record counts as the end
+     */
+    public boolean next() throws IOException {
+        try {
+            while (true) {
+                byte k = in.readByte();
+                if (k == TraceWriter.PATH) {
+                    int id = (int)readVarLong();
+                    String path = in.readUTF();
+                    while (paths.size() <= id) {
+                        paths.add(null);
+                    }
+                    paths.set(id, path);
+                    continue;
+                }
+                time += readVarLong();
+                pathId = (int)readVarLong();
+                long zigzag = readVarLong();
+                size = (zigzag >>> 1) ^ -(zigzag & 1);
+                version = readVarLong();
+                mode = in.readByte();
+                kind = k;
+                return true;
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    // Path of an id seen so far
+    public String getPath(int id) {
+        return paths.get(id);
+    }
+
+    public int getPathCount() {
+        return paths.size();
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
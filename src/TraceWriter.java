@@ -0,0 +1,111 @@
+/*
+ * TraceWriter.java
+ * This class records the opens, closes and unlinks seen by the proxy into a compact binary trace,
+ * which CacheSim replays offline to pick the cache size and eviction policy
+ * A path is written in full once and referred to by its id afterwards, numbers are varints,
+ * and timestamps are deltas in us, so a typical event takes about 15 bytes
+ *
+ * Layout: magic, start time in ms, then records led by their kind
+ *   PATH:  id, path (modified UTF-8)
+ *   event: us since the last event, path id, size (zigzag), version, open mode
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+public class TraceWriter {
+
+    public static final long magic = 0x5034343054524331L; // "P440TRC1"
+
+    // kinds of records
+    public static final byte PATH = 0;
+    public static final byte OPEN = 1;
+    public static final byte CLOSE = 2;
+    public static final byte UNLINK = 3;
+
+    private static final long flushNanos = 1000000000L; // buffered events reach the file at least this often
+
+    private DataOutputStream out;
+    private HashMap<String, Integer> ids = new HashMap<String, Integer>(); // path to its id in the trace
+    private long startNanos;
+    private long lastMicros = 0; // time of the last event since start
+    private long lastFlush;
+    private long events = 0;
+    private boolean closed = false;
+
+    public TraceWriter(String file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeLong(magic);
+        out.writeLong(System.currentTimeMillis());
+        startNanos = System.nanoTime();
+        lastFlush = startNanos;
+    }
+
+    /*
+     * Append an event
+     * @param: kind of the event, cache path of the file, size and version of its master copy,
+     *         and the ordinal of the open mode
+     */
+    public synchronized void record(byte kind, String path, long size, long version, int mode) {
+        if (closed) {
+            return;
+        }
+        try {
+            Integer id = ids.get(path);
+            if (id == null) {
+                id = ids.size();
+                ids.put(path, id);
+                out.writeByte(PATH);
+                writeVarLong(id);
+                out.writeUTF(path);
+            }
+            long now = System.nanoTime();
+            long micros = (now - startNanos) / 1000;
+            out.writeByte(kind);
+            writeVarLong(micros - lastMicros);
+            writeVarLong(id);
+            writeVarLong((size << 1) ^ (size >> 63)); // zigzag, a failed lookup has a negative size
+            writeVarLong(version);
+            out.writeByte(mode);
+            lastMicros = micros;
+            events++;
+            if (now - lastFlush > flushNanos) {
+                out.flush();
+                lastFlush = now;
+            }
+        } catch (IOException e) {
+            System.err.println("Trace stopped: " + e);
+            closed = true;
+        }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int)(value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    public synchronized long getEvents() {
+        return events;
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Trace close failed: " + e);
+        }
+    }
+}
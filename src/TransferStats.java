@@ -0,0 +1,37 @@
+/*
+ * TransferStats.java
+ * This class accumulates the compression statistics of one transfer,
+ * so that bandwidth saved can be weighed against CPU spent
+ *
+ * @author  : Xinkai Wang
+ * @contact : xinkaiw@andrew.cmu.edu
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TransferStats {
+    public AtomicLong rawBytes = new AtomicLong(); // payload bytes before compression
+    public AtomicLong wireBytes = new AtomicLong(); // payload bytes sent on the wire
+    public AtomicLong compressedChunks = new AtomicLong(); // chunks sent compressed
+    public AtomicLong chunks = new AtomicLong(); // all chunks
+    public AtomicLong localCodecNanos = new AtomicLong(); // time spent in the codec at proxy
+    public AtomicLong remoteCodecNanos = new AtomicLong(); // time spent in the codec at server
+
+    // Record one chunk
+    public void add(long raw, long wire, boolean compressed, long localNanos, long remoteNanos) {
+        rawBytes.addAndGet(raw);
+        wireBytes.addAndGet(wire);
+        chunks.incrementAndGet();
+        if (compressed) {
+            compressedChunks.incrementAndGet();
+        }
+        localCodecNanos.addAndGet(localNanos);
+        remoteCodecNanos.addAndGet(remoteNanos);
+    }
+
+    // Compression ratio, raw bytes over wire bytes
+    public double getRatio() {
+        long wire = wireBytes.get();
+        return wire == 0 ? 1.0 : (double)rawBytes.get() / wire;
+    }
+}